@@ -0,0 +1,123 @@
+package nju.hjh.arcadedb.timeseries;
+
+import com.arcadedb.database.RID;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.types.DataType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * cursor over data points within a period, reading the leaf chain one leaf at a time,
+ * so only data points of one leaf are held in memory.
+ * should be used within the transaction it is created, without modifying the tree.
+ */
+public class DataPointCursor {
+    private final String documentType;
+    private final int degree;
+    private final DataType dataType;
+    private final long startTime;
+    private final long endTime;
+    // remained count of data points, negative for unlimited
+    private int limit;
+
+    // leaf to read next, null if not loaded yet
+    private NestNodeLeaf nextLeaf;
+    private RID nextRID;
+    private final ArrayList<DataPoint> buffer = new ArrayList<>();
+    private int bufferIndex = 0;
+
+    // buffered out-of-order data points merged with ones of leaves, null if none
+    private Iterator<OutOfOrderBuffer.Entry> buffered;
+    private OutOfOrderBuffer.Entry nextBuffered;
+    // data point of leaves peeked when merging
+    private DataPoint nextLeafPoint;
+    // remained count of merged data points, negative for unlimited
+    private int mergedLimit;
+
+    public DataPointCursor(NestNodeLeaf firstLeaf, long startTime, long endTime, int limit) {
+        this.documentType = firstLeaf.documentType;
+        this.degree = firstLeaf.degree;
+        this.dataType = firstLeaf.dataType;
+        this.nextLeaf = firstLeaf;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.limit = limit;
+    }
+
+    // fill buffer with data points of next leaf, return false if no more leaf to read
+    private boolean readNextLeaf() throws TimeseriesException {
+        if (limit == 0) return false;
+        NestNodeLeaf leaf = nextLeaf;
+        if (leaf == null){
+            if (nextRID == null) return false;
+            // continue on next leaf, load as READ_ONLY
+            leaf = (NestNodeLeaf) NestNode.loadNonRoot(nextRID, documentType, degree, dataType, -1, -1, null);
+        }
+
+        buffer.clear();
+        bufferIndex = 0;
+        limit = leaf.datapoints.collect(startTime, endTime, limit, buffer);
+
+        // find successor leaf for more data
+        nextLeaf = null;
+        nextRID = endTime > leaf.datapoints.lastTimestamp() && leaf.succRID.isValid() ? leaf.succRID : null;
+        return true;
+    }
+
+    /**
+     * merge buffered out-of-order data points within period, by their timestamp order.
+     * a buffered one at the same timestamp as one in leaves replaces it if overwriting, otherwise gives way to it.
+     * leaves never need more data points than limit, as each merged data point takes at most one of them.
+     */
+    void mergeBuffered(Collection<OutOfOrderBuffer.Entry> entries, int limit) {
+        buffered = new ArrayList<>(entries).iterator();
+        nextBuffered = buffered.hasNext() ? buffered.next() : null;
+        mergedLimit = limit;
+    }
+
+    private DataPoint nextOfLeaves() throws TimeseriesException {
+        while (bufferIndex >= buffer.size()){
+            if (!readNextLeaf()) return null;
+        }
+        return buffer.get(bufferIndex++);
+    }
+
+    // get next data point, null if no more data point
+    public DataPoint next() throws TimeseriesException {
+        if (buffered == null) return nextOfLeaves();
+        if (!hasNext()) return null;
+
+        DataPoint result;
+        if (nextBuffered != null && (nextLeafPoint == null || nextBuffered.dataPoint.timestamp <= nextLeafPoint.timestamp)){
+            OutOfOrderBuffer.Entry entry = nextBuffered;
+            nextBuffered = buffered.hasNext() ? buffered.next() : null;
+            if (nextLeafPoint != null && nextLeafPoint.timestamp == entry.dataPoint.timestamp){
+                result = entry.overwrite ? entry.dataPoint : nextLeafPoint;
+                nextLeafPoint = null;
+            }else{
+                result = entry.dataPoint;
+            }
+        }else{
+            result = nextLeafPoint;
+            nextLeafPoint = null;
+        }
+        if (mergedLimit > 0) mergedLimit--;
+        return result;
+    }
+
+    // query if next data point exist
+    public boolean hasNext() throws TimeseriesException {
+        if (buffered == null){
+            while (bufferIndex >= buffer.size()){
+                if (!readNextLeaf()) return false;
+            }
+            return true;
+        }
+        if (mergedLimit == 0) return false;
+        if (nextLeafPoint == null) nextLeafPoint = nextOfLeaves();
+        return nextLeafPoint != null || nextBuffered != null;
+    }
+}
@@ -11,6 +11,13 @@ public class MathUtils {
         return bytes;
     }
 
+    /**
+     * bytes used by Binary.putNumber, which zigzag-encodes number before writing it as unsigned
+     */
+    public static int bytesToWriteSignedNumber(long number) {
+        return bytesToWriteUnsignedNumber((number << 1) ^ (number >> 63));
+    }
+
     public interface LongExtractor<T>{
         long getLong(T object);
     }
@@ -3,11 +3,13 @@ package nju.hjh.arcadedb.timeseries;
 import com.arcadedb.database.Binary;
 import com.arcadedb.database.Database;
 import com.arcadedb.database.RID;
+import com.arcadedb.engine.Bucket;
 import com.arcadedb.graph.MutableVertex;
 import com.arcadedb.graph.Vertex;
 import com.arcadedb.schema.DocumentType;
 import com.arcadedb.schema.Type;
 import lombok.Getter;
+import lombok.Setter;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
 import nju.hjh.arcadedb.timeseries.exception.DuplicateTimestampException;
 import nju.hjh.arcadedb.timeseries.exception.TargetNotFoundException;
@@ -20,11 +22,85 @@ import java.util.*;
 public class NestEngine {
     public static final String PREFIX_METRIC = "_m";
     public static final String PREFIX_NODE_TYPE = "_n";
+    public static final String PREFIX_NODE_POOL_TYPE = "_np";
     public static final int STATS_NODE_BUCKETS = 1;
+    public static final long DEFAULT_MAX_CACHE_BYTES = 64L << 20;
+    public static final int MAX_AGGREGATE_WINDOWS = 100000;
+    public static final int DEFAULT_MAX_CACHED_OBJECTS = 1 << 17;
 
     @Getter
     private final Database database;
-    private final HashMap<RID, NestNodeRoot> rootCache = new HashMap<>();
+    /**
+     * roots in LRU order, with their latest leaf and loaded internal nodes.
+     * trees modified by this engine are kept across transactions, as this engine is supposed to be their only writer,
+     * trees only read are dropped on commit as they may be modified by others.
+     */
+    private final LinkedHashMap<RID, NestNodeRoot> rootCache = new LinkedHashMap<>(16, 0.75f, true);
+    // estimated bytes of trees kept in cache
+    private final HashMap<RID, Long> cachedTreeBytes = new HashMap<>();
+    @Getter
+    private long cachedBytes = 0;
+    // roots accessed or modified in current transaction
+    private final Set<RID> touchedRoots = new HashSet<>();
+    private final Set<RID> modifiedRoots = new HashSet<>();
+    // roots with data points in out-of-order buffer as of last commit, including trees evicted from cache
+    private final Set<RID> bufferedRoots = new HashSet<>();
+    // max count of objects whose RID and metric root RIDs are kept across transactions, 0 to disable
+    @Getter
+    @Setter
+    private int maxCachedObjects = DEFAULT_MAX_CACHED_OBJECTS;
+    /**
+     * RIDs of objects by key given by caller, and RIDs of metric roots by object, in LRU order.
+     * entries added by a rolled back transaction are dropped, cached objects are supposed not to be deleted.
+     */
+    private final LinkedHashMap<String, RID> objectCache = new LinkedHashMap<>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RID> eldest) {
+            return size() > maxCachedObjects;
+        }
+    };
+    private final LinkedHashMap<RID, HashMap<String, RID>> metricRootCache = new LinkedHashMap<>(16, 0.75f, true){
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<RID, HashMap<String, RID>> eldest) {
+            return size() > maxCachedObjects;
+        }
+    };
+    // cache entries added in current transaction
+    private final List<String> newObjectKeys = new ArrayList<>();
+    private final Set<RID> newMetricRootObjects = new HashSet<>();
+    // max estimated bytes of trees kept across transactions, 0 to disable
+    @Getter
+    @Setter
+    private long maxCacheBytes = DEFAULT_MAX_CACHE_BYTES;
+    // create new trees of numeric metrics with compressed leaves
+    @Getter
+    @Setter
+    private boolean leafCompression = false;
+    // write node documents with only used bytes rounded to size class, instead of padding them to max node size
+    @Getter
+    @Setter
+    private boolean compactStorage = false;
+    // keep out-of-order data points inserted by UPDATE or IGNORE in buffer of tree, flushed to leaves in batch
+    @Getter
+    @Setter
+    private boolean bufferOutOfOrder = false;
+    /**
+     * count of node document types shared by new trees of all objects and metrics, 0 to create a node type per object bucket and metric.
+     * nodes are addressed by RID and trees keep the type of their root, so existing trees are not affected by this setting
+     */
+    @Getter
+    @Setter
+    private int nodeTypePoolSize = 0;
+    /**
+     * count of buckets of node document types created, each tree is kept in one bucket chosen by object and metric,
+     * so writers and page flusher of database work on separate files for different trees of a type
+     */
+    @Getter
+    @Setter
+    private int nodeTypeBuckets = STATS_NODE_BUCKETS;
+    // current transaction is read only, trees should not be created or modified
+    @Getter
+    private boolean readOnly = false;
 
     public NestEngine(Database database) {
         this.database = database;
@@ -39,55 +115,168 @@ public class NestEngine {
         return res;
     }
 
-    private NestNodeRoot getStatsTreeRoot(Vertex object, String metric) throws TimeseriesException {
-        final String metricRIDField = PREFIX_METRIC + metric;
-        final String metricDocumentType = PREFIX_NODE_TYPE+object.getIdentity().getBucketId()+"_"+metric;
+    /**
+     * @return RID of object cached by key, null if not cached
+     */
+    public RID getCachedObject(String key){
+        return objectCache.get(key);
+    }
 
-        // object's statsBlock document not exist
-        if (!database.getSchema().existsType(metricDocumentType))
-            throw new TargetNotFoundException("object's statsBlock documentType "+ metricDocumentType+" not exist");
+    public void cacheObject(String key, RID rid){
+        if (maxCachedObjects <= 0) return;
+        if (objectCache.put(key, rid) == null) newObjectKeys.add(key);
+    }
 
-        byte[] metricRidBytes = object.getBinary(metricRIDField);
-        if (metricRidBytes == null)
-            // no existing metric
-            throw new TargetNotFoundException("object has no metric "+metric);
+    // drop cached object and its metric roots, e.g. if object under cached RID is no longer the one of key
+    public void evictObject(String key){
+        RID rid = objectCache.remove(key);
+        if (rid != null) metricRootCache.remove(rid);
+    }
 
-        Binary metricRID = new Binary(metricRidBytes);
-        RID rid = new RID(database, metricRID.getInt(), metricRID.getLong());
+    // index of pooled node type, trees of the same metric share one type for locality
+    public static int nodeTypePoolIndex(String metric, int poolSize){
+        return Math.floorMod(metric.hashCode(), poolSize);
+    }
+
+    // node document type of new tree of object's metric
+    private String newTreeDocumentType(RID objectRID, String metric){
+        if (nodeTypePoolSize > 0) return PREFIX_NODE_POOL_TYPE + nodeTypePoolIndex(metric, nodeTypePoolSize);
+        return PREFIX_NODE_TYPE + objectRID.getBucketId() + "_" + metric;
+    }
+
+    private NestNodeRoot getStatsTreeRoot(Vertex object, String metric) throws TimeseriesException {
+        final RID objectRID = object.getIdentity();
 
+        // RID of root is decoded from object only if not cached
+        RID rid = getCachedMetricRoot(objectRID, metric);
+        if (rid == null) {
+            byte[] metricRidBytes = object.getBinary(PREFIX_METRIC + metric);
+            if (metricRidBytes == null)
+                // no existing metric
+                throw new TargetNotFoundException("object has no metric "+metric);
+
+            Binary metricRID = new Binary(metricRidBytes);
+            rid = new RID(database, metricRID.getInt(), metricRID.getLong());
+            cacheMetricRoot(objectRID, metric, rid);
+        }
+
+        touchedRoots.add(rid);
         NestNodeRoot root = rootCache.get(rid);
         if (root != null) return root;
+        return loadStatsTreeRoot(rid);
+    }
 
-        root = NestNode.loadRoot(rid, metricDocumentType);
+    private NestNodeRoot loadStatsTreeRoot(RID rid) throws TimeseriesException {
+        NestNodeRoot root = NestNode.loadRoot(rid);
+        root.compactStorage = compactStorage;
+        root.bufferOutOfOrder = bufferOutOfOrder;
         rootCache.put(rid, root);
         return root;
     }
 
+    // root of resolved tree, loaded without decoding object if not cached
+    private NestNodeRoot getStatsTreeRoot(SeriesHandle series) throws TimeseriesException {
+        RID rid = series.getRootRID();
+        touchedRoots.add(rid);
+        NestNodeRoot root = rootCache.get(rid);
+        if (root != null) return root;
+        return loadStatsTreeRoot(rid);
+    }
+
+    private NestNodeRoot getStatsTreeRootForUpdate(SeriesHandle series) throws TimeseriesException {
+        checkWritable();
+        NestNodeRoot root = getStatsTreeRoot(series);
+        modifiedRoots.add(series.getRootRID());
+        return root;
+    }
+
+    /**
+     * resolve tree of object's metric, to insert into and query it through the handle many times
+     * @throws TargetNotFoundException if object has no such metric
+     */
+    public SeriesHandle getSeries(Vertex object, String metric) throws TimeseriesException {
+        return new SeriesHandle(object.getIdentity(), metric, getStatsTreeRoot(object, metric).document.getIdentity());
+    }
+
+    public SeriesHandle getOrCreateSeries(MutableVertex object, String metric, DataType type) throws TimeseriesException {
+        return getOrCreateSeries(object, metric, type, NestNode.DEFAULT_TREE_DEGREE, NestNode.DEFAULT_DATA_BLOCK_SIZE);
+    }
+
+    /**
+     * resolve tree of object's metric, created with given options if absent
+     */
+    public SeriesHandle getOrCreateSeries(MutableVertex object, String metric, DataType type, int degree, int dataBlockSize) throws TimeseriesException {
+        if (!existsStatsTree(object, metric))
+            createIfAbsentStatsTree(object, metric, type, degree, dataBlockSize);
+        return getSeries(object, metric);
+    }
+
+    private RID getCachedMetricRoot(RID objectRID, String metric){
+        HashMap<String, RID> metricRoots = metricRootCache.get(objectRID);
+        return metricRoots == null ? null : metricRoots.get(metric);
+    }
+
+    private void cacheMetricRoot(RID objectRID, String metric, RID rootRID){
+        if (maxCachedObjects <= 0) return;
+        metricRootCache.computeIfAbsent(objectRID, k -> new HashMap<>()).put(metric, rootRID);
+        newMetricRootObjects.add(objectRID);
+    }
+
+    private NestNodeRoot getStatsTreeRootForUpdate(Vertex object, String metric) throws TimeseriesException {
+        checkWritable();
+        NestNodeRoot root = getStatsTreeRoot(object, metric);
+        modifiedRoots.add(root.document.getIdentity());
+        return root;
+    }
+
     public void createIfAbsentStatsTree(MutableVertex object, String metric, DataType type) throws TimeseriesException {
         createIfAbsentStatsTree(object, metric, type, NestNode.DEFAULT_TREE_DEGREE);
     }
 
+    public boolean existsStatsTree(Vertex object, String metric){
+        return getCachedMetricRoot(object.getIdentity(), metric) != null || object.getBinary(PREFIX_METRIC + metric) != null;
+    }
+
     public void createIfAbsentStatsTree(MutableVertex object, String metric, DataType type, int degree) throws TimeseriesException {
+        createIfAbsentStatsTree(object, metric, type, degree, NestNode.DEFAULT_DATA_BLOCK_SIZE);
+    }
+
+    /**
+     * @param degree max child count of internal nodes
+     * @param dataBlockSize max bytes of data points in a leaf
+     */
+    public void createIfAbsentStatsTree(MutableVertex object, String metric, DataType type, int degree, int dataBlockSize) throws TimeseriesException {
+        checkWritable();
+        if (getCachedMetricRoot(object.getIdentity(), metric) != null) return; // exists
         final String metricRIDField = PREFIX_METRIC + metric;
-        final String metricDocumentType = PREFIX_NODE_TYPE + object.getIdentity().getBucketId()+"_"+metric;
+        byte[] metricRidBytes = object.getBinary(metricRIDField);
+        if (metricRidBytes != null) return; // exists
 
-        // create object's metric document if not exist
-        if (!database.getSchema().existsType(metricDocumentType)) {
-            DocumentType statsNodeType = database.getSchema().buildDocumentType().withName(metricDocumentType).withTotalBuckets(STATS_NODE_BUCKETS).create();
+        // create node document type of new tree if not exist
+        final String metricDocumentType = newTreeDocumentType(object.getIdentity(), metric);
+        DocumentType statsNodeType;
+        if (database.getSchema().existsType(metricDocumentType)) {
+            statsNodeType = database.getSchema().getType(metricDocumentType);
+        } else {
+            statsNodeType = database.getSchema().buildDocumentType().withName(metricDocumentType).withTotalBuckets(Math.max(1, nodeTypeBuckets)).create();
             statsNodeType.createProperty(NestNode.PROP_NODE_BINARY, Type.BINARY);
         }
-
-        byte[] metricRidBytes = object.getBinary(metricRIDField);
-        if (metricRidBytes != null) return; // exists
+        // bucket of new tree, among buckets the type has
+        List<Bucket> buckets = statsNodeType.getBuckets(false);
+        String bucketName = buckets.get(Math.floorMod(Objects.hash(object.getIdentity(), metric), buckets.size())).getName();
 
         // no existing statsBlockRoot, create one
-        NestNodeRoot treeRoot = NestNode.newNest(database, metricDocumentType, type, degree);
+        NestNodeRoot treeRoot = NestNode.newNest(database, metricDocumentType, type, degree, dataBlockSize, leafCompression, compactStorage, bucketName);
+        treeRoot.bufferOutOfOrder = bufferOutOfOrder;
         Binary metricRID = new Binary(12);
         metricRID.putInt(treeRoot.document.getIdentity().getBucketId());
         metricRID.putLong(treeRoot.document.getIdentity().getPosition());
         object.set(metricRIDField, metricRID.toByteArray());
         object.save();
         rootCache.put(treeRoot.document.getIdentity(), treeRoot);
+        cacheMetricRoot(object.getIdentity(), metric, treeRoot.document.getIdentity());
+        touchedRoots.add(treeRoot.document.getIdentity());
+        modifiedRoots.add(treeRoot.document.getIdentity());
     }
 
     /**
@@ -104,16 +293,147 @@ public class NestEngine {
     }
 
     public void insertDataPoint(MutableVertex object, String metric, long timestamp, Object value, UpdateStrategy strategy, int statsTreeDegree) throws TimeseriesException {
-        createIfAbsentStatsTree(object, metric, DataType.inferDatatype(value), statsTreeDegree);
-        NestNodeRoot root = getStatsTreeRoot(object, metric);
+        if (!existsStatsTree(object, metric))
+            createIfAbsentStatsTree(object, metric, DataType.inferDatatype(value), statsTreeDegree);
+        NestNodeRoot root = getStatsTreeRootForUpdate(object, metric);
         DataPoint dataPoint = root.dataType.convertValue2DataPoint(timestamp, value);
         root.insert(dataPoint, strategy);
     }
 
+    public void insertDataPoint(SeriesHandle series, long timestamp, Object value, UpdateStrategy strategy) throws TimeseriesException {
+        NestNodeRoot root = getStatsTreeRootForUpdate(series);
+        root.insert(root.dataType.convertValue2DataPoint(timestamp, value), strategy);
+    }
+
+    /**
+     * insert data point which is mostly newer than all existing ones of metric, e.g. collected in order.
+     * tree is created only if absent from cache and object, newer data point is appended to latest leaf
+     * comparing only with the last timestamp, others are inserted as insertDataPoint does.
+     */
+    public void appendDataPoint(MutableVertex object, String metric, long timestamp, Object value, UpdateStrategy strategy) throws TimeseriesException {
+        if (!existsStatsTree(object, metric))
+            createIfAbsentStatsTree(object, metric, DataType.inferDatatype(value));
+        NestNodeRoot root = getStatsTreeRootForUpdate(object, metric);
+        root.append(root.dataType.convertValue2DataPoint(timestamp, value), strategy);
+    }
+
+    public void appendDataPoint(SeriesHandle series, long timestamp, Object value, UpdateStrategy strategy) throws TimeseriesException {
+        NestNodeRoot root = getStatsTreeRootForUpdate(series);
+        root.append(root.dataType.convertValue2DataPoint(timestamp, value), strategy);
+    }
+
+    /**
+     * insert data points in batch, which is much faster than inserting one by one when data points are newer than existing ones
+     * @param dataPoints data points sorted by timestamp in ascending order
+     */
+    public void insertBatch(MutableVertex object, String metric, SortedMap<Long, Object> dataPoints, UpdateStrategy strategy) throws TimeseriesException {
+        if (dataPoints.isEmpty()) return;
+        if (!existsStatsTree(object, metric))
+            createIfAbsentStatsTree(object, metric, DataType.inferDatatype(dataPoints.get(dataPoints.firstKey())));
+        insertBatch(getStatsTreeRootForUpdate(object, metric), dataPoints, strategy);
+    }
+
+    public void insertBatch(SeriesHandle series, SortedMap<Long, Object> dataPoints, UpdateStrategy strategy) throws TimeseriesException {
+        if (dataPoints.isEmpty()) return;
+        insertBatch(getStatsTreeRootForUpdate(series), dataPoints, strategy);
+    }
+
+    private void insertBatch(NestNodeRoot root, SortedMap<Long, Object> dataPoints, UpdateStrategy strategy) throws TimeseriesException {
+        List<DataPoint> points = new ArrayList<>(dataPoints.size());
+        for (Map.Entry<Long, Object> entry : dataPoints.entrySet())
+            points.add(root.dataType.convertValue2DataPoint(entry.getKey(), entry.getValue()));
+        root.insertBatch(points, strategy);
+    }
+
+    /**
+     * @param timestamps timestamps of data points in strictly ascending order
+     * @param values values of data points
+     */
+    public void insertBatch(MutableVertex object, String metric, long[] timestamps, Object[] values, UpdateStrategy strategy) throws TimeseriesException {
+        if (timestamps.length != values.length)
+            throw new TimeseriesException("timestamps and values should be of the same length");
+        if (timestamps.length == 0) return;
+        if (!existsStatsTree(object, metric))
+            createIfAbsentStatsTree(object, metric, DataType.inferDatatype(values[0]));
+        NestNodeRoot root = getStatsTreeRootForUpdate(object, metric);
+        List<DataPoint> points = new ArrayList<>(timestamps.length);
+        for (int i=0; i<timestamps.length; i++){
+            if (i > 0 && timestamps[i] <= timestamps[i-1])
+                throw new TimeseriesException("timestamps of batch should be strictly ascending");
+            points.add(root.dataType.convertValue2DataPoint(timestamps[i], values[i]));
+        }
+        root.insertBatch(points, strategy);
+    }
+
+    /**
+     * insert data points already decoded, without converting values
+     * @param dataType data type of new tree if metric not exists
+     * @param dataPoints data points in strictly ascending order of timestamp, converted if not of tree's data type
+     */
+    public void insertBatch(MutableVertex object, String metric, DataType dataType, List<DataPoint> dataPoints, UpdateStrategy strategy) throws TimeseriesException {
+        if (dataPoints.isEmpty()) return;
+        if (!existsStatsTree(object, metric))
+            createIfAbsentStatsTree(object, metric, dataType);
+        insertBatch(getStatsTreeRootForUpdate(object, metric), dataPoints, strategy);
+    }
+
+    /**
+     * @param dataPoints data points in strictly ascending order of timestamp, converted if not of tree's data type
+     */
+    public void insertBatch(SeriesHandle series, List<DataPoint> dataPoints, UpdateStrategy strategy) throws TimeseriesException {
+        if (dataPoints.isEmpty()) return;
+        insertBatch(getStatsTreeRootForUpdate(series), dataPoints, strategy);
+    }
+
+    private void insertBatch(NestNodeRoot root, List<DataPoint> dataPoints, UpdateStrategy strategy) throws TimeseriesException {
+        Class<? extends DataPoint> pointClass = root.dataType.newEmptyDataPoint().getClass();
+        List<DataPoint> points = new ArrayList<>(dataPoints.size());
+        for (int i=0; i<dataPoints.size(); i++){
+            DataPoint point = dataPoints.get(i);
+            if (i > 0 && point.timestamp <= dataPoints.get(i-1).timestamp)
+                throw new TimeseriesException("timestamps of batch should be strictly ascending");
+            if (point.getClass() == pointClass) root.dataType.checkDataPointValid(point);
+            else point = root.dataType.convertValue2DataPoint(point.timestamp, point.getValue());
+            points.add(point);
+        }
+        root.insertBatch(points, strategy);
+    }
+
     public Statistics aggregativeQuery(Vertex object, String metric, long startTime, long endTime) throws TimeseriesException {
         return getStatsTreeRoot(object, metric).aggregativeQuery(startTime, endTime);
     }
 
+    public Statistics aggregativeQuery(SeriesHandle series, long startTime, long endTime) throws TimeseriesException {
+        return getStatsTreeRoot(series).aggregativeQuery(startTime, endTime);
+    }
+
+    /**
+     * aggregate data points within [startTime, endTime] into windows of windowSize in one traversal of tree
+     * @return statistics of each window in time order, window i starts at startTime + i * windowSize
+     */
+    public Statistics[] aggregateByWindow(Vertex object, String metric, long startTime, long endTime, long windowSize) throws TimeseriesException {
+        return aggregateByWindow(getStatsTreeRoot(object, metric), startTime, endTime, windowSize);
+    }
+
+    public Statistics[] aggregateByWindow(SeriesHandle series, long startTime, long endTime, long windowSize) throws TimeseriesException {
+        return aggregateByWindow(getStatsTreeRoot(series), startTime, endTime, windowSize);
+    }
+
+    private Statistics[] aggregateByWindow(NestNodeRoot root, long startTime, long endTime, long windowSize) throws TimeseriesException {
+        if (windowSize <= 0)
+            throw new TimeseriesException("window size should be positive");
+        if (startTime > endTime)
+            throw new TimeseriesException("start time should not be greater than end time");
+        long windowCount = Long.divideUnsigned(endTime - startTime, windowSize) + 1;
+        if (windowCount > MAX_AGGREGATE_WINDOWS)
+            throw new TimeseriesException("window count "+windowCount+" is greater than max window count "+MAX_AGGREGATE_WINDOWS);
+
+        Statistics[] windows = new Statistics[(int) windowCount];
+        for (int i=0; i<windows.length; i++) windows[i] = root.dataType.newEmptyStatistics();
+        root.aggregateByWindow(startTime, endTime, windowSize, windows);
+        return windows;
+    }
+
     public DataPointList periodQuery(Vertex object, String metric, long startTime, long endTime) throws TimeseriesException {
         return periodQuery(object, metric, startTime, endTime, -1);
     }
@@ -122,23 +442,130 @@ public class NestEngine {
         return getStatsTreeRoot(object, metric).periodQuery(startTime, endTime, limit);
     }
 
+    public DataPointCursor periodCursor(Vertex object, String metric, long startTime, long endTime, int limit) throws TimeseriesException {
+        return getStatsTreeRoot(object, metric).periodCursor(startTime, endTime, limit);
+    }
+
+    public DataPointList periodQuery(SeriesHandle series, long startTime, long endTime, int limit) throws TimeseriesException {
+        return getStatsTreeRoot(series).periodQuery(startTime, endTime, limit);
+    }
+
+    public DataPointCursor periodCursor(SeriesHandle series, long startTime, long endTime, int limit) throws TimeseriesException {
+        return getStatsTreeRoot(series).periodCursor(startTime, endTime, limit);
+    }
+
+    // if any tree written or read by this engine kept data points in out-of-order buffer at last commit
+    public boolean hasBufferedTrees(){
+        return !bufferedRoots.isEmpty();
+    }
+
+    /**
+     * flush out-of-order buffers into leaves, e.g. when writer is idle.
+     * covers trees buffered at last commit, evicted ones loaded again, and trees accessed in current transaction.
+     * use between begin and commit, buffers of trees never accessed by this engine are flushed when filled.
+     * @return count of trees flushed
+     */
+    public int flushBuffers() throws TimeseriesException {
+        checkWritable();
+        Set<RID> candidates = new HashSet<>(bufferedRoots);
+        candidates.addAll(touchedRoots);
+        int flushed = 0;
+        for (RID rid : candidates){
+            touchedRoots.add(rid);
+            NestNodeRoot root = rootCache.get(rid);
+            if (root == null) root = loadStatsTreeRoot(rid);
+            if (!root.hasBuffer()) continue;
+            modifiedRoots.add(rid);
+            root.flushBuffer();
+            flushed++;
+        }
+        return flushed;
+    }
+
     public void begin(){
         database.begin();
         database.setAsyncFlush(false);
+        readOnly = false;
+    }
+
+    /**
+     * begin a read only transaction, which reads a snapshot of pages as first read,
+     * so it neither waits for nor blocks concurrent writers. end it with commit or rollback.
+     */
+    public void beginReadOnly(){
+        database.begin(Database.TRANSACTION_ISOLATION_LEVEL.REPEATABLE_READ);
+        readOnly = true;
+    }
+
+    private void checkWritable() throws TimeseriesException {
+        if (readOnly) throw new TimeseriesException("trees can not be modified in read only transaction");
     }
 
     public void commit() throws TimeseriesException {
-        for(NestNodeRoot root : rootCache.values()){
-            root.serializeIfDirty();
+        for (RID rid : modifiedRoots){
+            rootCache.get(rid).serializeIfDirty();
         }
         database.commit();
-        rootCache.clear();
+
+        // keep modified trees with only latest leaf and internal nodes loaded, drop trees only read
+        for (RID rid : touchedRoots){
+            NestNodeRoot root = rootCache.get(rid);
+            if (root == null) continue;
+            // buffers are persisted by now, so trees evicted or dropped below can be flushed by RID
+            if (root.hasBuffer()) bufferedRoots.add(rid);
+            else bufferedRoots.remove(rid);
+            boolean kept = cachedTreeBytes.containsKey(rid);
+            if (!kept && !modifiedRoots.contains(rid)){
+                rootCache.remove(rid);
+                continue;
+            }
+            root.releaseLoadedLeaves();
+            long bytes = root.estimatedBytes();
+            Long oldBytes = cachedTreeBytes.put(rid, bytes);
+            cachedBytes += bytes - (oldBytes == null ? 0 : oldBytes);
+        }
+        touchedRoots.clear();
+        modifiedRoots.clear();
+        newObjectKeys.clear();
+        newMetricRootObjects.clear();
+        readOnly = false;
+
+        // evict least recently used trees
+        Iterator<RID> lruIterator = rootCache.keySet().iterator();
+        while (cachedBytes > maxCacheBytes && lruIterator.hasNext()){
+            RID rid = lruIterator.next();
+            Long bytes = cachedTreeBytes.remove(rid);
+            if (bytes != null) cachedBytes -= bytes;
+            lruIterator.remove();
+        }
     }
 
     public void rollback(){
-        rootCache.clear();
+        // drop trees modified by rolled back transaction, or loaded by it. buffered roots are left as of last commit
+        for (RID rid : touchedRoots){
+            if (modifiedRoots.contains(rid) || !cachedTreeBytes.containsKey(rid)) removeCachedTree(rid);
+        }
+        touchedRoots.clear();
+        modifiedRoots.clear();
+        // drop objects and metric roots cached by rolled back transaction, as they may be created by it
+        for (String key : newObjectKeys) objectCache.remove(key);
+        for (RID rid : newMetricRootObjects) metricRootCache.remove(rid);
+        newObjectKeys.clear();
+        newMetricRootObjects.clear();
+        readOnly = false;
         if (database.isTransactionActive())
             database.rollback();
     }
 
+    // count of trees kept in cache across transactions
+    public int getCachedTreeCount(){
+        return cachedTreeBytes.size();
+    }
+
+    private void removeCachedTree(RID rid){
+        rootCache.remove(rid);
+        Long bytes = cachedTreeBytes.remove(rid);
+        if (bytes != null) cachedBytes -= bytes;
+    }
+
 }
@@ -1,21 +1,26 @@
 package nju.hjh.arcadedb.timeseries;
 
 import com.arcadedb.database.*;
+import nju.hjh.arcadedb.timeseries.datapoint.ColumnDataPointSet;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 import nju.hjh.arcadedb.timeseries.statistics.Statistics;
 import nju.hjh.arcadedb.timeseries.types.DataType;
 
-import java.util.TreeMap;
-
 public abstract class NestNode{
     public static final int DEFAULT_TREE_DEGREE = 32;
-    public static final int MAX_DATA_BLOCK_SIZE = 4096;
+    public static final int DEFAULT_DATA_BLOCK_SIZE = 4096;
+    public static final int MIN_DATA_BLOCK_SIZE = 256;
+    public static final int MAX_DATA_BLOCK_SIZE = 65536;
+    public static final int MIN_TREE_DEGREE = 4;
+    public static final int MAX_TREE_DEGREE = 256;
     public static final long MAX_TIMESTAMP = Long.MAX_VALUE;
     public static final int LATEST_SPLIT_RATIO = 90;
     public static final int OLD_SPLIT_RATIO = 60;
     public static final RID NULL_RID = new RID(null, -1, -1);
     public static final String PROP_NODE_BINARY = "bin";
+    // smallest size class of node document in compact storage
+    public static final int MIN_STORAGE_SIZE = 64;
 
     public static class ChildInfo{
         public RID rid;
@@ -45,6 +50,12 @@ public abstract class NestNode{
     public long endTimestamp;
     public Statistics statistics;
     public boolean dirty = false;
+    // max bytes of data points in a leaf, persisted in root header
+    public int dataBlockSize = DEFAULT_DATA_BLOCK_SIZE;
+    // write only used bytes rounded up to size class instead of padding to max node size
+    public boolean compactStorage = false;
+    // bucket new node documents of the tree are saved into, null for the one chosen by document type
+    public String bucketName = null;
 
     public NestNode(Document document, String documentType, int degree, DataType dataType, long beginTimestamp, long endTimestamp, Statistics statistics){
         this.document = document;
@@ -56,16 +67,73 @@ public abstract class NestNode{
         this.statistics = statistics;
     }
 
-    public static NestNodeRoot loadRoot(RID rid, String documentType) throws TimeseriesException {
+    // pass tree-wide settings to node loaded or created under this node
+    protected void passSettingsTo(NestNode node){
+        node.dataBlockSize = dataBlockSize;
+        node.compactStorage = compactStorage;
+        node.bucketName = bucketName;
+    }
+
+    // save node document, a new one into bucket of tree
+    protected void saveDocument(MutableDocument document){
+        if (bucketName != null && document.getIdentity() == null) document.save(bucketName);
+        else document.save();
+    }
+
+    /**
+     * check if degree and data block size can be used to build tree of target data type
+     */
+    public static void checkTreeOptions(DataType dataType, int degree, int dataBlockSize) throws TimeseriesException {
+        if (degree < MIN_TREE_DEGREE || degree > MAX_TREE_DEGREE)
+            throw new TimeseriesException(String.format("tree degree should be within [%d, %d]", MIN_TREE_DEGREE, MAX_TREE_DEGREE));
+        if (dataBlockSize < MIN_DATA_BLOCK_SIZE || dataBlockSize > MAX_DATA_BLOCK_SIZE)
+            throw new TimeseriesException(String.format("data block size should be within [%d, %d]", MIN_DATA_BLOCK_SIZE, MAX_DATA_BLOCK_SIZE));
+        if (dataBlockSize < minDataBlockSize(dataType))
+            throw new TimeseriesException("data block size of "+(dataType.isFixed() ? "fixed" : "unfixed")+" data type should not be less than "+minDataBlockSize(dataType));
+    }
+
+    /**
+     * smallest data block size for data type, so a full leaf can be split into two non-empty ones.
+     * fixed data point takes its max bytes, unfixed data point may take up to half of default block
+     */
+    public static int minDataBlockSize(DataType dataType) {
+        if (!dataType.isFixed()) return DEFAULT_DATA_BLOCK_SIZE;
+        return Math.max(MIN_DATA_BLOCK_SIZE, 2 * dataType.maxDataPointBytes());
+    }
+
+    /**
+     * @param usedSize bytes actually used by node
+     * @param paddedSize max bytes the node may use
+     * @return size of binary to write into node document.
+     * in compact storage it is the smallest power of 2 (at least MIN_STORAGE_SIZE) that fits used bytes,
+     * so a growing node is relocated by database only when crossing a size class.
+     */
+    protected int storageSize(int usedSize, int paddedSize){
+        if (!compactStorage) return paddedSize;
+        int size = MIN_STORAGE_SIZE;
+        while (size < usedSize) size <<= 1;
+        return Math.min(size, paddedSize);
+    }
+
+    // load root by RID, nodes of the tree are created in the same document type as root
+    public static NestNodeRoot loadRoot(RID rid) throws TimeseriesException {
         Database database = (Database) rid.getDatabase();
         Document document = database.lookupByRID(rid, true).asDocument();
+        String documentType = document.getTypeName();
         Binary binary = new Binary(document.getBinary(PROP_NODE_BINARY));
-        if (binary.getByte() != NestNodeRoot.BLOCK_TYPE) throw new TimeseriesException("non-root node found when loading root node");
+        byte blockType = binary.getByte();
+        if (blockType != NestNodeRoot.BLOCK_TYPE && blockType != NestNodeRoot.BUFFERED_BLOCK_TYPE && blockType != NestNodeRoot.LEGACY_BLOCK_TYPE) throw new TimeseriesException("non-root node found when loading root node");
         int degree = binary.getInt();
+        // legacy root uses default data block size
+        int dataBlockSize = blockType != NestNodeRoot.LEGACY_BLOCK_TYPE ? binary.getInt() : DEFAULT_DATA_BLOCK_SIZE;
         DataType dataType = DataType.resolveFromBinary(binary);
 
         NestNodeRoot root = new NestNodeRoot(document, documentType, degree, dataType, 0L, MAX_TIMESTAMP);
+        root.dataBlockSize = dataBlockSize;
+        root.bucketName = database.getSchema().getBucketById(rid.getBucketId()).getName();
         root.latest = new ChildInfo(new RID(database, binary.getInt(), binary.getLong()), binary.getLong(), null, null);
+        if (blockType == NestNodeRoot.BUFFERED_BLOCK_TYPE)
+            root.bufferRID = new RID(database, binary.getInt(), binary.getLong());
         root.childCount = binary.getInt();
         for(int i=0; i<root.childCount; i++)
             root.children[i] = new ChildInfo(new RID(database, binary.getInt(), binary.getLong()), binary.getLong(), Statistics.getStatisticsFromBinary(dataType, binary), null);
@@ -77,7 +145,7 @@ public abstract class NestNode{
         Document document = database.lookupByRID(rid, true).asDocument();
         Binary binary = new Binary(document.getBinary(PROP_NODE_BINARY));
         switch (binary.getByte()) {
-            case NestNodeRoot.BLOCK_TYPE ->
+            case NestNodeRoot.BLOCK_TYPE, NestNodeRoot.BUFFERED_BLOCK_TYPE, NestNodeRoot.LEGACY_BLOCK_TYPE ->
                 throw new TimeseriesException("root node found when loading non-root node");
             case NestNodeInternal.BLOCK_TYPE -> {
                 NestNodeInternal internal = new NestNodeInternal(document, documentType, degree, dataType, beginTimestamp, endTimestamp, statistics);
@@ -90,13 +158,26 @@ public abstract class NestNode{
                 NestNodeLeaf leaf = new NestNodeLeaf(document, documentType, degree, dataType, beginTimestamp, endTimestamp, statistics);
                 leaf.succRID = new RID(database, binary.getInt(), binary.getLong());
                 int dataSize = binary.getInt();
-                leaf.datapoints = new TreeMap<>();
-                for(int i=0; i<dataSize; i++){
-                    DataPoint newPoint = dataType.newEmptyDataPoint();
-                    newPoint.deserialize(binary);
-                    leaf.datapoints.put(newPoint.timestamp, newPoint);
-                    leaf.dataBytesUsed += newPoint.realBytesRequired();
-                }
+                leaf.datapoints = dataType.newEmptyDataPointSet();
+                leaf.datapoints.wrap(binary, dataSize);
+                if (!dataType.isFixed())
+                    for (DataPoint dataPoint : leaf.datapoints)
+                        leaf.dataBytesUsed += dataPoint.realBytesRequired();
+                return leaf;
+            }
+            case NestNodeCompressedLeaf.BLOCK_TYPE -> {
+                byte formatVersion = binary.getByte();
+                if (formatVersion != NestNodeCompressedLeaf.FORMAT_VERSION)
+                    throw new TimeseriesException("unsupported compressed leaf format version "+formatVersion);
+                if (!(dataType.newEmptyDataPointSet() instanceof ColumnDataPointSet column))
+                    throw new TimeseriesException("compressed leaf found with unsupported data type");
+                NestNodeCompressedLeaf leaf = new NestNodeCompressedLeaf(document, documentType, degree, dataType, beginTimestamp, endTimestamp, statistics);
+                leaf.succRID = new RID(database, binary.getInt(), binary.getLong());
+                int dataSize = binary.getInt();
+                int dataBegin = binary.position();
+                column.decode(binary, dataSize);
+                leaf.datapoints = column;
+                leaf.dataBytesUsed = binary.position() - dataBegin;
                 return leaf;
             }
             default -> throw new TimeseriesException("node has invalid type");
@@ -104,17 +185,41 @@ public abstract class NestNode{
     }
 
     public static NestNodeRoot newNest(Database database, String documentType, DataType dataType, int degree) throws TimeseriesException {
+        return newNest(database, documentType, dataType, degree, DEFAULT_DATA_BLOCK_SIZE, false, false);
+    }
+
+    /**
+     * @param dataBlockSize max bytes of data points in a leaf
+     * @param compressed use compressed leaves if data type supports
+     * @param compactStorage write nodes in compact storage, see {@link #storageSize(int, int)}
+     */
+    public static NestNodeRoot newNest(Database database, String documentType, DataType dataType, int degree, int dataBlockSize, boolean compressed, boolean compactStorage) throws TimeseriesException {
+        return newNest(database, documentType, dataType, degree, dataBlockSize, compressed, compactStorage, null);
+    }
+
+    /**
+     * @param bucketName bucket of document type to save all nodes of the tree into, null for the one chosen by document type
+     */
+    public static NestNodeRoot newNest(Database database, String documentType, DataType dataType, int degree, int dataBlockSize, boolean compressed, boolean compactStorage, String bucketName) throws TimeseriesException {
+        checkTreeOptions(dataType, degree, dataBlockSize);
+
         // root node
         MutableDocument docRoot = database.newDocument(documentType);
         NestNodeRoot newTreeRoot = new NestNodeRoot(docRoot, documentType, degree, dataType, 0, MAX_TIMESTAMP);
         newTreeRoot.dirty = true;
+        newTreeRoot.dataBlockSize = dataBlockSize;
+        newTreeRoot.compactStorage = compactStorage;
+        newTreeRoot.bucketName = bucketName;
 
         // leaf node
         MutableDocument docLeaf = database.newDocument(documentType);
-        NestNodeLeaf newLeaf = new NestNodeLeaf(docLeaf, documentType, degree, dataType, 0, MAX_TIMESTAMP, null);
+        NestNodeLeaf newLeaf = compressed && NestNodeCompressedLeaf.isSupported(dataType) ?
+                new NestNodeCompressedLeaf(docLeaf, documentType, degree, dataType, 0, MAX_TIMESTAMP, null) :
+                new NestNodeLeaf(docLeaf, documentType, degree, dataType, 0, MAX_TIMESTAMP, null);
         newLeaf.dirty = true;
+        newTreeRoot.passSettingsTo(newLeaf);
 
-        newLeaf.datapoints = new TreeMap<>();
+        newLeaf.datapoints = dataType.newEmptyDataPointSet();
         newLeaf.succRID = NULL_RID;
         newLeaf.serializeIfDirty();
 
@@ -152,7 +257,25 @@ public abstract class NestNode{
 
     public abstract Statistics aggregativeQuery(long startTime, long endTime) throws TimeseriesException;
 
+    /**
+     * merge data points within [startTime, endTime] into windows of windowSize,
+     * window i covers [startTime + i * windowSize, startTime + (i+1) * windowSize)
+     * @param windows statistics of each window to merge into
+     */
+    public abstract void aggregateByWindow(long startTime, long endTime, long windowSize, Statistics[] windows) throws TimeseriesException;
+
     public abstract DataPointList periodQuery(long startTime, long endTime, int limit) throws TimeseriesException;
 
+    // cursor over data points within period, reading leaves on demand
+    public abstract DataPointCursor periodCursor(long startTime, long endTime, int limit) throws TimeseriesException;
+
     public abstract void serializeIfDirty() throws TimeseriesException;
+
+    // index of window containing time, time should not be less than startTime
+    public static int windowIndex(long time, long startTime, long windowSize){
+        return (int) Long.divideUnsigned(time - startTime, windowSize);
+    }
+
+    // estimated bytes of memory used by this node and loaded nodes under it
+    public abstract long estimatedBytes();
 }
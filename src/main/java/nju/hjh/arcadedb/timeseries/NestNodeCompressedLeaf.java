@@ -0,0 +1,109 @@
+package nju.hjh.arcadedb.timeseries;
+
+import com.arcadedb.database.Binary;
+import com.arcadedb.database.Document;
+import com.arcadedb.database.MutableDocument;
+import nju.hjh.arcadedb.timeseries.datapoint.ColumnDataPointSet;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+import nju.hjh.arcadedb.timeseries.types.DataType;
+
+/**
+ * leaf node of fixed 8-byte numeric data types, whose data points are stored in compressed encoding,
+ * see {@link ColumnDataPointSet#encode(Binary)}.
+ * leaf splits when encoded data exceeds data block size of tree.
+ */
+public class NestNodeCompressedLeaf extends NestNodeLeaf {
+    public static final byte BLOCK_TYPE = 3;
+    public static final byte FORMAT_VERSION = 1;
+
+    /** size of stat header:
+     *  block type(1B) + format version(1B) + nextRID(12B) + datapointCount(4B)
+     */
+    public static final int HEADER_SIZE = 18;
+
+    public NestNodeCompressedLeaf(Document document, String documentType, int degree, DataType dataType, long beginTimestamp, long endTimestamp, Statistics statistics) throws TimeseriesException {
+        super(document, documentType, degree, dataType, beginTimestamp, endTimestamp, statistics);
+    }
+
+    public static boolean isSupported(DataType dataType){
+        return dataType.newEmptyDataPointSet() instanceof ColumnDataPointSet;
+    }
+
+    @Override
+    protected NestNodeLeaf newSiblingLeaf(MutableDocument newDoc, long beginTimestamp, long endTimestamp) throws TimeseriesException {
+        return new NestNodeCompressedLeaf(newDoc, documentType, degree, dataType, beginTimestamp, endTimestamp, dataType.newEmptyStatistics());
+    }
+
+    @Override
+    public void serializeIfDirty() throws TimeseriesException {
+        if (!dirty) return;
+        int binSize = HEADER_SIZE + dataBlockSize;
+
+        MutableDocument mutableDocument = document.modify();
+        // put stat
+        Binary binary = new Binary(binSize, false);
+        binary.putByte(BLOCK_TYPE);
+        binary.putByte(FORMAT_VERSION);
+        binary.putInt(succRID.getBucketId());
+        binary.putLong(succRID.getPosition());
+        binary.putInt(datapoints.size());
+
+        // put data
+        ((ColumnDataPointSet) datapoints).encode(binary);
+
+        if (binary.size() > binSize)
+            throw new TimeseriesException("leaf node size exceeded");
+
+        binary.size(storageSize(binary.size(), binSize));
+        mutableDocument.set(PROP_NODE_BINARY, binary.toByteArray());
+        saveDocument(mutableDocument);
+        dirty = false;
+    }
+
+    @Override
+    protected boolean tryAppend(DataPoint data, int fillBytes) throws TimeseriesException {
+        ColumnDataPointSet column = (ColumnDataPointSet) datapoints;
+        column.put(data);
+        int recordBytes = column.encodedBytesAt(column.size()-1);
+        if (column.size() > 1 && dataBytesUsed + recordBytes > fillBytes){
+            column.pollLast();
+            return false;
+        }
+        dataBytesUsed += recordBytes;
+        return true;
+    }
+
+    @Override
+    public void insertFixed(DataPoint data, UpdateStrategy strategy, InsertionCallback insertionCallback, UpdateCallback updateCallback, SplitCallback splitCallback) throws TimeseriesException {
+        ColumnDataPointSet column = (ColumnDataPointSet) datapoints;
+        int sizeBefore = column.size();
+
+        if (!putDataPoint(data, strategy, insertionCallback, updateCallback))
+            return;
+
+        // appended record only affects its own encoding, otherwise re-calc the whole block
+        if (column.size() > sizeBefore && data.timestamp == column.lastTimestamp())
+            dataBytesUsed += column.encodedBytesAt(column.size()-1);
+        else
+            dataBytesUsed = column.encodedBytes();
+
+        // split if full
+        if (dataBytesUsed > dataBlockSize){
+            int targetBytes = dataBytesUsed*(!succRID.isValid() ? LATEST_SPLIT_RATIO : OLD_SPLIT_RATIO)/100;
+            // keep records in this leaf until target bytes reached
+            int splitIndex = 1, splitedBytes = column.encodedBytesAt(0);
+            while (splitIndex < column.size()-1){
+                int recordBytes = column.encodedBytesAt(splitIndex);
+                if (splitedBytes + recordBytes > targetBytes) break;
+                splitedBytes += recordBytes;
+                splitIndex++;
+            }
+            ColumnDataPointSet newDatapoints = (ColumnDataPointSet) column.splitLast(column.size()-splitIndex);
+            dataBytesUsed = splitedBytes;
+            splitToLatterLeaf(newDatapoints, newDatapoints.encodedBytes(), splitCallback);
+        }
+        dirty = true;
+    }
+}
@@ -29,6 +29,7 @@ public class NestNodeInternal extends NestNode {
         if (index >= childCount) throw new TimeseriesException("index "+index+" out of bound of "+childCount);
         ChildInfo child = children[index];
         child.node = NestNode.loadNonRoot(child.rid, documentType, degree, dataType, child.beginTime, index == childCount-1 ? endTimestamp : children[index+1].beginTime -1, child.statistics);
+        passSettingsTo(child.node);
     }
 
     @Override
@@ -50,9 +51,10 @@ public class NestNodeInternal extends NestNode {
         if (binary.size() > infoSize)
             throw new TimeseriesException("stat header size exceeded");
 
-        binary.size(infoSize);
+        binary.size(storageSize(binary.size(), infoSize));
         mutableDocument.set(PROP_NODE_BINARY, binary.toByteArray());
-        mutableDocument.save();
+        saveDocument(mutableDocument);
+        dirty = false;
     }
 
     @Override
@@ -96,6 +98,7 @@ public class NestNodeInternal extends NestNode {
             MutableDocument newDoc = document.getDatabase().newDocument(documentType);
             NestNodeInternal newInternal = new NestNodeInternal(newDoc, documentType, degree, dataType, children[splitCount].beginTime, endTimestamp, dataType.newEmptyStatistics());
             newInternal.dirty = true;
+            passSettingsTo(newInternal);
             for(int i=splitCount; i<childCount; i++){
                 newInternal.children[i-splitCount] = children[i];
                 newInternal.statistics.merge(children[i].statistics);
@@ -137,6 +140,27 @@ public class NestNodeInternal extends NestNode {
         });
     }
 
+    /**
+     * drop loaded leaves under this node to save memory, loaded internal nodes are kept.
+     * should be called only when no node under this node is dirty
+     */
+    public void releaseLoadedLeaves(){
+        for (int i=0; i<childCount; i++){
+            if (children[i].node instanceof NestNodeInternal internal)
+                internal.releaseLoadedLeaves();
+            else
+                children[i].node = null;
+        }
+    }
+
+    @Override
+    public long estimatedBytes() {
+        long bytes = (long) children.length * (CHILD_SIZE_WITHOUT_STATISTICS + dataType.maxStatisticsBytes());
+        for (int i=0; i<childCount; i++)
+            if (children[i].node != null) bytes += children[i].node.estimatedBytes();
+        return bytes;
+    }
+
     @Override
     public Statistics aggregativeQuery(long startTime, long endTime) throws TimeseriesException {
         // locate first block
@@ -160,6 +184,29 @@ public class NestNodeInternal extends NestNode {
         return resultStats;
     }
 
+    @Override
+    public void aggregateByWindow(long startTime, long endTime, long windowSize, Statistics[] windows) throws TimeseriesException {
+        int pos = MathUtils.longBinarySearchFormer(children, 0, childCount, startTime, child -> child.beginTime);
+        if (pos == -1) pos = 0;
+        for(; pos<childCount; pos++){
+            ChildInfo cur = children[pos];
+            if (cur.beginTime > endTime) break;
+            Statistics stats = cur.statistics;
+            if (stats.count == 0 || stats.lastTime < startTime) continue;
+            // direct merge if child lies within one window
+            if (startTime <= stats.firstTime && endTime >= stats.lastTime){
+                int window = windowIndex(stats.firstTime, startTime, windowSize);
+                if (window == windowIndex(stats.lastTime, startTime, windowSize)){
+                    windows[window].merge(stats);
+                    continue;
+                }
+            }
+            // deep search for child crossing window or query boundary
+            if (cur.node == null) loadChildNode(pos);
+            cur.node.aggregateByWindow(startTime, endTime, windowSize, windows);
+        }
+    }
+
     @Override
     public DataPointList periodQuery(long startTime, long endTime, int limit) throws TimeseriesException {
         // locate first block
@@ -168,4 +215,12 @@ public class NestNodeInternal extends NestNode {
         if (queryChild.node == null) loadChildNode(queryPos);
         return queryChild.node.periodQuery(startTime, endTime, limit);
     }
+
+    @Override
+    public DataPointCursor periodCursor(long startTime, long endTime, int limit) throws TimeseriesException {
+        int queryPos = MathUtils.longBinarySearchFormer(children, 0, childCount, startTime, child -> child.beginTime);
+        ChildInfo queryChild = children[queryPos];
+        if (queryChild.node == null) loadChildNode(queryPos);
+        return queryChild.node.periodCursor(startTime, endTime, limit);
+    }
 }
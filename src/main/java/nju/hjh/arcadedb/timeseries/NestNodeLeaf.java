@@ -5,11 +5,12 @@ import com.arcadedb.database.Document;
 import com.arcadedb.database.MutableDocument;
 import com.arcadedb.database.RID;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPointSet;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 import nju.hjh.arcadedb.timeseries.statistics.Statistics;
 import nju.hjh.arcadedb.timeseries.types.DataType;
 
-import java.util.TreeMap;
+import java.util.List;
 
 public class NestNodeLeaf extends NestNode {
     public static final byte BLOCK_TYPE = 2;
@@ -19,7 +20,7 @@ public class NestNodeLeaf extends NestNode {
      */
     public static final int HEADER_SIZE = 17;
 
-    public TreeMap<Long, DataPoint> datapoints;
+    public DataPointSet datapoints;
     public RID succRID;
     // for unfixed data type
     public int dataBytesUsed;
@@ -31,7 +32,7 @@ public class NestNodeLeaf extends NestNode {
     @Override
     public void serializeIfDirty() throws TimeseriesException {
         if (!dirty) return;
-        int binSize = HEADER_SIZE + MAX_DATA_BLOCK_SIZE;
+        int binSize = HEADER_SIZE + dataBlockSize;
 
         MutableDocument mutableDocument = document.modify();
         // put stat
@@ -42,15 +43,15 @@ public class NestNodeLeaf extends NestNode {
         binary.putInt(datapoints.size());
 
         // put data
-        for (DataPoint dataPoint : datapoints.values())
-            dataPoint.serialize(binary);
+        datapoints.serialize(binary);
 
         if (binary.size() > binSize)
             throw new TimeseriesException("leaf node size exceeded");
 
-        binary.size(binSize);
+        binary.size(storageSize(binary.size(), binSize));
         mutableDocument.set(PROP_NODE_BINARY, binary.toByteArray());
-        mutableDocument.save();
+        saveDocument(mutableDocument);
+        dirty = false;
     }
 
     @Override
@@ -71,62 +72,132 @@ public class NestNodeLeaf extends NestNode {
         reachLeafCallback.call();
     }
 
-    public void insertFixed(DataPoint data, UpdateStrategy strategy, InsertionCallback insertionCallback, UpdateCallback updateCallback, SplitCallback splitCallback) throws TimeseriesException {
-        int maxdataSize = MAX_DATA_BLOCK_SIZE / dataType.maxDataPointBytes();
+    /**
+     * create an empty leaf of the same kind as this one, used when splitting
+     */
+    protected NestNodeLeaf newSiblingLeaf(MutableDocument newDoc, long beginTimestamp, long endTimestamp) throws TimeseriesException {
+        return new NestNodeLeaf(newDoc, documentType, degree, dataType, beginTimestamp, endTimestamp, dataType.newEmptyStatistics());
+    }
 
+    /**
+     * put data point into this leaf, existing data point at the same timestamp is handled by strategy
+     * @return false if this leaf is not modified
+     */
+    protected boolean putDataPoint(DataPoint data, UpdateStrategy strategy, InsertionCallback insertionCallback, UpdateCallback updateCallback) throws TimeseriesException {
         DataPoint oldDP;
         if ((oldDP = datapoints.get(data.timestamp)) != null){
             // already exist
             DataPoint newDP = oldDP.getUpdatedDataPoint(data, strategy);
             if (newDP == null)
-                return; // no need to update
+                return false; // no need to update
             dataType.checkDataPointValid(newDP);
             if (oldDP.getValue().equals(newDP.getValue()))
-                return; // no need to update
-            datapoints.put(data.timestamp, newDP);
+                return false; // no need to update
+            datapoints.put(newDP);
             if (statistics !=null && !statistics.update(oldDP, newDP)){
                 statistics.clear();
-                statistics.insertAll(datapoints);
+                datapoints.insertIntoStatistics(statistics);
             }
             if (updateCallback != null) updateCallback.call(oldDP, newDP);
         }else {
             // add new datapoint
-            datapoints.put(data.timestamp, data);
+            datapoints.put(data);
             if (statistics != null) statistics.insert(data);
             if (insertionCallback != null) insertionCallback.call(data);
         }
+        return true;
+    }
+
+    /**
+     * move data points split from the tail of this leaf into a new latter leaf
+     * @param newDatapoints data points already removed from this leaf
+     * @param newDataBytesUsed data bytes used by new leaf
+     */
+    protected void splitToLatterLeaf(DataPointSet newDatapoints, int newDataBytesUsed, SplitCallback splitCallback) throws TimeseriesException {
+        long splitTime = newDatapoints.firstTimestamp();
+
+        // create latter leaf node
+        MutableDocument newDoc = document.getDatabase().newDocument(documentType);
+        NestNodeLeaf newLeaf = newSiblingLeaf(newDoc, splitTime, endTimestamp);
+        newLeaf.dirty = true;
+        passSettingsTo(newLeaf);
+        newLeaf.datapoints = newDatapoints;
+        newLeaf.datapoints.insertIntoStatistics(newLeaf.statistics);
+        newLeaf.dataBytesUsed = newDataBytesUsed;
+
+        // update this leaf
+        endTimestamp = splitTime-1;
+        if (statistics != null) {
+            statistics.clear();
+            datapoints.insertIntoStatistics(statistics);
+        }
+
+        // link leaves
+        newLeaf.succRID = this.succRID;
+        newLeaf.serializeIfDirty();
+        this.succRID = newLeaf.document.getIdentity();
+
+        if (splitCallback != null) splitCallback.call(newLeaf);
+    }
+
+    /**
+     * append sorted data points newer than all data points in this leaf, until leaf is filled to LATEST_SPLIT_RATIO
+     * @param points data points sorted by timestamp
+     * @param fromIndex index of first data point to append
+     * @return index after the last appended data point
+     */
+    public int appendBatch(List<DataPoint> points, int fromIndex) throws TimeseriesException {
+        int fillBytes = dataBlockSize * LATEST_SPLIT_RATIO / 100;
+        int index = fromIndex;
+        while (index < points.size() && tryAppend(points.get(index), fillBytes)) index++;
+        if (index > fromIndex){
+            if (statistics != null) datapoints.insertIntoStatistics(statistics, points.get(fromIndex).timestamp, points.get(index-1).timestamp);
+            dirty = true;
+        }
+        return index;
+    }
+
+    /**
+     * append data point newer than all data points in this latest leaf, until leaf is filled to LATEST_SPLIT_RATIO.
+     * space of data points is reserved for a filled leaf, so appending does not grow the set point by point
+     * @return false if leaf is filled and data point is not appended
+     */
+    public boolean appendLatest(DataPoint data) throws TimeseriesException {
+        int fillBytes = dataBlockSize * LATEST_SPLIT_RATIO / 100;
+        datapoints.reserve(fillBytes / dataType.maxDataPointBytes() + 1);
+        if (!tryAppend(data, fillBytes)) return false;
+        if (statistics != null) statistics.insert(data);
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * append data point at tail if data bytes used stays within fillBytes, an empty leaf always accepts the data point
+     * @return false if data point is not appended
+     */
+    protected boolean tryAppend(DataPoint data, int fillBytes) throws TimeseriesException {
+        if (dataType.isFixed()){
+            if (!datapoints.isEmpty() && (datapoints.size()+1) * dataType.maxDataPointBytes() > fillBytes) return false;
+        }else {
+            if (!datapoints.isEmpty() && dataBytesUsed + data.realBytesRequired() > fillBytes) return false;
+            dataBytesUsed += data.realBytesRequired();
+        }
+        datapoints.put(data);
+        return true;
+    }
+
+    public void insertFixed(DataPoint data, UpdateStrategy strategy, InsertionCallback insertionCallback, UpdateCallback updateCallback, SplitCallback splitCallback) throws TimeseriesException {
+        int maxdataSize = dataBlockSize / dataType.maxDataPointBytes();
+
+        if (!putDataPoint(data, strategy, insertionCallback, updateCallback))
+            return;
 
         // split if full
         if (datapoints.size() > maxdataSize){
             // split into 2 blocks
             int totalSize = datapoints.size();
             int splitedSize = Math.min(maxdataSize, totalSize*(!succRID.isValid() ? LATEST_SPLIT_RATIO : OLD_SPLIT_RATIO)/100);
-
-            TreeMap<Long, DataPoint> newDatapoints = new TreeMap<>();
-            for(int i=0; i<totalSize-splitedSize; i++){
-                DataPoint transPoint = datapoints.pollLastEntry().getValue();
-                newDatapoints.put(transPoint.timestamp, transPoint);
-            }
-            long splitTime = newDatapoints.firstKey();
-            MutableDocument newDoc = document.getDatabase().newDocument(documentType);
-            NestNodeLeaf newLeaf = new NestNodeLeaf(newDoc, documentType, degree, dataType, splitTime, endTimestamp, dataType.newEmptyStatistics());
-            newLeaf.dirty = true;
-            newLeaf.datapoints = newDatapoints;
-            newLeaf.statistics.insertAll(newLeaf.datapoints);
-
-            // update this leaf
-            endTimestamp = splitTime-1;
-            if (statistics != null) {
-                statistics.clear();
-                statistics.insertAll(datapoints);
-            }
-
-            // link leaves
-            newLeaf.succRID = this.succRID;
-            newLeaf.serializeIfDirty();
-            this.succRID = newLeaf.document.getIdentity();
-
-            if (splitCallback != null) splitCallback.call(newLeaf);
+            splitToLatterLeaf(datapoints.splitLast(totalSize-splitedSize), 0, splitCallback);
         }
         dirty = true;
     }
@@ -141,67 +212,51 @@ public class NestNodeLeaf extends NestNode {
             dataType.checkDataPointValid(newDP);
             if (oldDP.getValue().equals(newDP.getValue()))
                 return; // no need to update
-            datapoints.put(newDP.timestamp, newDP);
+            datapoints.put(newDP);
             dataBytesUsed += newDP.realBytesRequired() - oldDP.realBytesRequired();
             if (statistics != null && !statistics.update(oldDP, newDP)){
                 statistics.clear();
-                statistics.insertAll(datapoints);
+                datapoints.insertIntoStatistics(statistics);
             }
             if (updateCallback != null) updateCallback.call(oldDP, newDP);
         }else {
-            datapoints.put(data.timestamp, data);
+            datapoints.put(data);
             dataBytesUsed += data.realBytesRequired();
             if (statistics!=null) statistics.insert(data);
             if (insertionCallback != null) insertionCallback.call(data);
         }
 
-        // check split requirement, to achieve split, each data point should use at most MAX_DATA_BLOCK_SIZE/2 bytes
-        if (dataBytesUsed > MAX_DATA_BLOCK_SIZE){
+        // check split requirement, to achieve split, each data point should use at most dataBlockSize/2 bytes
+        if (dataBytesUsed > dataBlockSize){
             // locate split size
-            int splitedBytes, targetBytes = Math.min(MAX_DATA_BLOCK_SIZE, dataBytesUsed*(!succRID.isValid() ? LATEST_SPLIT_RATIO : OLD_SPLIT_RATIO)/100);
+            int splitedBytes, targetBytes = Math.min(dataBlockSize, dataBytesUsed*(!succRID.isValid() ? LATEST_SPLIT_RATIO : OLD_SPLIT_RATIO)/100);
             // fill this block as much as possible
             splitedBytes = dataBytesUsed;
-            TreeMap<Long, DataPoint> newDatapoints = new TreeMap<>();
+            DataPointSet newDatapoints = dataType.newEmptyDataPointSet();
             while (splitedBytes > targetBytes){
-                DataPoint transPoint = datapoints.pollLastEntry().getValue();
+                DataPoint transPoint = datapoints.pollLast();
                 int transBytes = transPoint.realBytesRequired();
                 // check if new leaf can hold this point
-                if (dataBytesUsed-splitedBytes+transBytes>MAX_DATA_BLOCK_SIZE){
+                if (dataBytesUsed-splitedBytes+transBytes>dataBlockSize){
                     // send it back
-                    datapoints.put(transPoint.timestamp, transPoint);
+                    datapoints.put(transPoint);
                     break;
                 }
-                newDatapoints.put(transPoint.timestamp, transPoint);
+                newDatapoints.put(transPoint);
                 splitedBytes -= transBytes;
             }
-            long splitTime = newDatapoints.firstKey();
-
-            // create latter leaf node
-            MutableDocument newDoc = document.getDatabase().newDocument(documentType);
-            NestNodeLeaf newLeaf = new NestNodeLeaf(newDoc, documentType, degree, dataType, splitTime, endTimestamp, dataType.newEmptyStatistics());
-            newLeaf.dirty = true;
-            newLeaf.datapoints = newDatapoints;
-            newLeaf.statistics.insertAll(newLeaf.datapoints);
-            newLeaf.dataBytesUsed = this.dataBytesUsed - splitedBytes;
-
-            // update this leaf
-            endTimestamp = splitTime-1;
-            if (statistics!=null) {
-                statistics.clear();
-                statistics.insertAll(datapoints);
-            }
+            int newDataBytesUsed = this.dataBytesUsed - splitedBytes;
             this.dataBytesUsed = splitedBytes;
-
-            // link leaves
-            newLeaf.succRID = this.succRID;
-            newLeaf.serializeIfDirty();
-            this.succRID = newLeaf.document.getIdentity();
-
-            if (splitCallback != null) splitCallback.call(newLeaf);
+            splitToLatterLeaf(newDatapoints, newDataBytesUsed, splitCallback);
         }
         dirty = true;
     }
 
+    @Override
+    public long estimatedBytes() {
+        return HEADER_SIZE + (dataType.isFixed() ? (long) datapoints.size() * dataType.maxDataPointBytes() : dataBytesUsed);
+    }
+
     // use the result as READ_ONLY !!!
     @Override
     public Statistics aggregativeQuery(long startTime, long endTime) throws TimeseriesException {
@@ -209,34 +264,48 @@ public class NestNodeLeaf extends NestNode {
             return statistics;
 
         Statistics result = dataType.newEmptyStatistics();
-        result.insertAll(datapoints.subMap(startTime, true, endTime, true));
+        datapoints.insertIntoStatistics(result, startTime, endTime);
         return result;
     }
 
+    @Override
+    public void aggregateByWindow(long startTime, long endTime, long windowSize, Statistics[] windows) throws TimeseriesException {
+        if (datapoints.isEmpty()) return;
+        long firstTime = Math.max(startTime, datapoints.firstTimestamp());
+        long lastTime = Math.min(endTime, datapoints.lastTimestamp());
+        if (firstTime > lastTime) return;
+
+        int firstWindow = windowIndex(firstTime, startTime, windowSize);
+        int lastWindow = windowIndex(lastTime, startTime, windowSize);
+        if (statistics != null && firstWindow == lastWindow && startTime <= statistics.firstTime && endTime >= statistics.lastTime){
+            windows[firstWindow].merge(statistics);
+            return;
+        }
+        // scan each window this leaf crosses
+        for (int i=firstWindow; i<=lastWindow; i++){
+            long windowStart = i == firstWindow ? firstTime : startTime + i * windowSize;
+            long windowEnd = i == lastWindow ? lastTime : startTime + (i+1) * windowSize - 1;
+            datapoints.insertIntoStatistics(windows[i], windowStart, windowEnd);
+        }
+    }
+
     @Override
     public DataPointList periodQuery(long startTime, long endTime, int limit) throws TimeseriesException {
         if (startTime < this.beginTimestamp)
             throw new TimeseriesException("period query over-headed");
 
         DataPointList resultList = new DataPointList();
-
-        for(DataPoint dataPoint : datapoints.subMap(startTime, true, endTime, true).values()){
+        DataPointCursor cursor = new DataPointCursor(this, startTime, endTime, limit);
+        DataPoint dataPoint;
+        while ((dataPoint = cursor.next()) != null)
             resultList.dataPointList.add(dataPoint);
-            if (--limit == 0) break;
-        }
-
-        // find successor leaf for more data
-        NestNodeLeaf currentLeaf = this;
-        while (limit != 0 && endTime > currentLeaf.datapoints.lastKey() && currentLeaf.succRID.isValid()) {
-            // continue on next leaf, load as READ_ONLY
-            currentLeaf = (NestNodeLeaf) NestNode.loadNonRoot(currentLeaf.succRID, documentType, degree, dataType, -1, -1, null);
-
-            for(DataPoint dataPoint : currentLeaf.datapoints.subMap(startTime, true, endTime, true).values()){
-                resultList.dataPointList.add(dataPoint);
-                if (--limit == 0) break;
-            }
-        }
-
         return resultList;
     }
+
+    @Override
+    public DataPointCursor periodCursor(long startTime, long endTime, int limit) throws TimeseriesException {
+        if (startTime < this.beginTimestamp)
+            throw new TimeseriesException("period query over-headed");
+        return new DataPointCursor(this, startTime, endTime, limit);
+    }
 }
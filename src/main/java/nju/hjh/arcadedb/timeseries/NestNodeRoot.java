@@ -3,21 +3,37 @@ package nju.hjh.arcadedb.timeseries;
 import com.arcadedb.database.Binary;
 import com.arcadedb.database.Document;
 import com.arcadedb.database.MutableDocument;
+import com.arcadedb.database.RID;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 import nju.hjh.arcadedb.timeseries.statistics.Statistics;
 import nju.hjh.arcadedb.timeseries.types.DataType;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 public class NestNodeRoot extends NestNodeInternal {
-    public static final byte BLOCK_TYPE = 0;
+    public static final byte BLOCK_TYPE = 4;
+    // root header without data block size, written by older versions
+    public static final byte LEGACY_BLOCK_TYPE = 0;
+    // root header with bufferRID(12B) after latestStartTime, written only if out-of-order buffer exists
+    public static final byte BUFFERED_BLOCK_TYPE = 5;
+    public static final int BUFFER_RID_SIZE = 12;
 
     /**
      * size of stat header without type and child list:
-     * block type(1B) + degree(4B) + latestRID(12B) + latestStartTime(8B) + child size(4B)
+     * block type(1B) + degree(4B) + dataBlockSize(4B) + latestRID(12B) + latestStartTime(8B) + child size(4B)
      */
-    public static final int HEADER_WITHOUT_TYPE_AND_CHILD = 29;
+    public static final int HEADER_WITHOUT_TYPE_AND_CHILD = 33;
 
     public ChildInfo latest;
+    // document of out-of-order buffer, NULL_RID if none
+    public RID bufferRID = NULL_RID;
+    // loaded or created out-of-order buffer, null if not loaded or none
+    public OutOfOrderBuffer buffer;
+    // keep data points older than latest leaf in out-of-order buffer, if their strategy is UPDATE or IGNORE
+    public boolean bufferOutOfOrder = false;
 
     public NestNodeRoot(Document document, String documentType, int degree, DataType dataType, long beginTimestamp, long endTimestamp) {
         super(document, documentType, degree, dataType, beginTimestamp, endTimestamp, null);
@@ -25,24 +41,47 @@ public class NestNodeRoot extends NestNodeInternal {
 
     public void loadLatestNode() throws TimeseriesException {
         latest.node = NestNode.loadNonRoot(latest.rid, documentType, degree, dataType, latest.beginTime, endTimestamp, null);
+        passSettingsTo(latest.node);
+    }
+
+    public void loadBuffer() throws TimeseriesException {
+        buffer = OutOfOrderBuffer.load(this, bufferRID);
+    }
+
+    // if any data point is kept in out-of-order buffer
+    public boolean hasBuffer() {
+        return buffer != null || bufferRID.isValid();
     }
 
     @Override
     public void serializeIfDirty() throws TimeseriesException {
         if (latest.node != null) latest.node.serializeIfDirty();
+        if (buffer != null && buffer.dirty){
+            buffer.serializeIfDirty();
+            if (!buffer.document.getIdentity().equals(bufferRID)){
+                bufferRID = buffer.document.getIdentity();
+                dirty = true;
+            }
+        }
         if (!dirty) return;
         for(int i=0; i<childCount; i++) if (children[i].node != null) children[i].node.serializeIfDirty();
 
-        int infoSize = HEADER_WITHOUT_TYPE_AND_CHILD + dataType.byteUsed() + degree * (CHILD_SIZE_WITHOUT_STATISTICS + dataType.maxStatisticsBytes());
+        boolean buffered = bufferRID.isValid();
+        int infoSize = HEADER_WITHOUT_TYPE_AND_CHILD + (buffered ? BUFFER_RID_SIZE : 0) + dataType.byteUsed() + degree * (CHILD_SIZE_WITHOUT_STATISTICS + dataType.maxStatisticsBytes());
 
         MutableDocument modifiedDocument = document.modify();
         Binary binary = new Binary(infoSize, false);
-        binary.putByte(BLOCK_TYPE);
+        binary.putByte(buffered ? BUFFERED_BLOCK_TYPE : BLOCK_TYPE);
         binary.putInt(degree);
+        binary.putInt(dataBlockSize);
         dataType.serialize(binary);
         binary.putInt(latest.rid.getBucketId());
         binary.putLong(latest.rid.getPosition());
         binary.putLong(latest.beginTime);
+        if (buffered){
+            binary.putInt(bufferRID.getBucketId());
+            binary.putLong(bufferRID.getPosition());
+        }
         binary.putInt(childCount);
         for (int i=0; i<childCount; i++){
             binary.putInt(children[i].rid.getBucketId());
@@ -54,9 +93,10 @@ public class NestNodeRoot extends NestNodeInternal {
         if (binary.size() > infoSize)
             throw new TimeseriesException("stat header size exceeded");
 
-        binary.size(infoSize);
+        binary.size(storageSize(binary.size(), infoSize));
         modifiedDocument.set(PROP_NODE_BINARY, binary.toByteArray());
-        modifiedDocument.save();
+        saveDocument(modifiedDocument);
+        dirty = false;
     }
 
     private final SplitCallback rootSplitCallback = newNode -> {
@@ -64,6 +104,7 @@ public class NestNodeRoot extends NestNodeInternal {
         MutableDocument newDoc = document.getDatabase().newDocument(documentType);
         NestNodeInternal newInternal = new NestNodeInternal(newDoc, documentType, degree, dataType, beginTimestamp, endTimestamp, dataType.newEmptyStatistics());
         newInternal.dirty = true;
+        passSettingsTo(newInternal);
 
         for (int i = 0; i < childCount; i++) {
             newInternal.children[i] = this.children[i];
@@ -87,17 +128,58 @@ public class NestNodeRoot extends NestNodeInternal {
         if (data.timestamp >= latest.beginTime)
             insertLatest(data, strategy);
         else
-            super.insert(data, strategy, null, null, rootSplitCallback);
+            insertOld(data, strategy);
+    }
+
+    private void insertOld(DataPoint data, UpdateStrategy strategy) throws TimeseriesException {
+        UpdateStrategy.TSBaseUpdateStrategy baseStrategy = strategy.baseStrategy;
+        if (bufferOutOfOrder && childCount > 0 && (baseStrategy == UpdateStrategy.TSBaseUpdateStrategy.UPDATE || baseStrategy == UpdateStrategy.TSBaseUpdateStrategy.IGNORE)){
+            boolean overwrite = baseStrategy == UpdateStrategy.TSBaseUpdateStrategy.UPDATE;
+            if (buffer == null) {
+                if (bufferRID.isValid()) loadBuffer();
+                else buffer = new OutOfOrderBuffer(this, null);
+            }
+            if (!buffer.add(data, overwrite)){
+                // buffer filled, an empty buffer always accepts data point
+                flushBuffer();
+                buffer = new OutOfOrderBuffer(this, null);
+                buffer.add(data, overwrite);
+            }
+            return;
+        }
+
+        // other strategies depend on the data point at same timestamp, which may be buffered
+        if (hasBuffer()){
+            if (buffer == null) loadBuffer();
+            if (buffer.contains(data.timestamp)) flushBuffer();
+        }
+        super.insert(data, strategy, null, null, rootSplitCallback);
+    }
+
+    /**
+     * insert data points of out-of-order buffer into leaves in timestamp order and drop the buffer.
+     * leaves are serialized on commit, so each leaf touched is rewritten once for all data points flushed into it.
+     */
+    public void flushBuffer() throws TimeseriesException {
+        if (!hasBuffer()) return;
+        if (buffer == null) loadBuffer();
+        OutOfOrderBuffer flushing = buffer;
+        buffer = null;
+        bufferRID = NULL_RID;
+        dirty = true;
+        for (OutOfOrderBuffer.Entry entry : flushing.entries())
+            super.insert(entry.dataPoint, entry.overwrite ? UpdateStrategy.UPDATE : UpdateStrategy.IGNORE, null, null, rootSplitCallback);
+        flushing.delete();
     }
 
     private void insertLatest(DataPoint data, UpdateStrategy strategy) throws TimeseriesException{
-        if (latest.node == null) latest.node = NestNode.loadNonRoot(latest.rid, documentType, degree, dataType, latest.beginTime, MAX_TIMESTAMP, null);
+        if (latest.node == null) loadLatestNode();
         latest.node.insert(data, strategy, null, null, newNode -> {
             NestNodeLeaf oldLeaf = (NestNodeLeaf) latest.node;
             // insert older node into tree
             if (oldLeaf.statistics == null){
                 oldLeaf.statistics = dataType.newEmptyStatistics();
-                oldLeaf.statistics.insertAll(oldLeaf.datapoints);
+                oldLeaf.datapoints.insertIntoStatistics(oldLeaf.statistics);
             }
             insertLeafToTree(oldLeaf, null, null, rootSplitCallback);
 
@@ -107,6 +189,125 @@ public class NestNodeRoot extends NestNodeInternal {
         });
     }
 
+    /**
+     * insert data points sorted by timestamp.
+     * data points newer than latest leaf are appended to leaves directly, each filled leaf is attached to tree once,
+     * others are inserted one by one.
+     */
+    public void insertBatch(List<DataPoint> dataPoints, UpdateStrategy strategy) throws TimeseriesException {
+        int index = 0;
+        // data points overlapped with existing ones
+        while (index < dataPoints.size()){
+            if (latest.node == null) loadLatestNode();
+            DataPoint data = dataPoints.get(index);
+            if (data.timestamp >= latest.beginTime && data.timestamp > ((NestNodeLeaf) latest.node).datapoints.lastTimestamp())
+                break;
+            insert(data, strategy);
+            index++;
+        }
+        if (index == dataPoints.size()) return;
+
+        NestNodeLeaf leaf = (NestNodeLeaf) latest.node;
+        index = leaf.appendBatch(dataPoints, index);
+        while (index < dataPoints.size()){
+            // latest leaf filled, append rest into new latest leaf
+            NestNodeLeaf newLeaf = newLatestLeaf(leaf, dataPoints.get(index).timestamp);
+            index = newLeaf.appendBatch(dataPoints, index);
+            linkLatestLeaf(leaf, newLeaf);
+            leaf = newLeaf;
+        }
+    }
+
+    /**
+     * append data point newer than all existing ones to latest leaf, comparing only with the last timestamp,
+     * without looking up data point at the same timestamp or updating tree above latest leaf.
+     * data point not newer than the last one is inserted as usual.
+     */
+    public void append(DataPoint data, UpdateStrategy strategy) throws TimeseriesException {
+        if (latest.node == null) loadLatestNode();
+        NestNodeLeaf leaf = (NestNodeLeaf) latest.node;
+        if (data.timestamp < latest.beginTime || data.timestamp <= leaf.datapoints.lastTimestamp()){
+            insert(data, strategy);
+            return;
+        }
+        if (!leaf.appendLatest(data)){
+            // latest leaf filled, an empty leaf always accepts data point
+            NestNodeLeaf newLeaf = newLatestLeaf(leaf, data.timestamp);
+            newLeaf.appendLatest(data);
+            linkLatestLeaf(leaf, newLeaf);
+        }
+    }
+
+    /**
+     * create an empty leaf to follow filled latest leaf, link it by linkLatestLeaf after filled
+     * @param beginTimestamp begin timestamp of new latest leaf
+     */
+    private NestNodeLeaf newLatestLeaf(NestNodeLeaf leaf, long beginTimestamp) throws TimeseriesException {
+        MutableDocument newDoc = document.getDatabase().newDocument(documentType);
+        NestNodeLeaf newLeaf = leaf.newSiblingLeaf(newDoc, beginTimestamp, MAX_TIMESTAMP);
+        newLeaf.dirty = true;
+        passSettingsTo(newLeaf);
+        newLeaf.datapoints = dataType.newEmptyDataPointSet();
+        newLeaf.succRID = NULL_RID;
+        return newLeaf;
+    }
+
+    // save new leaf, link filled latest leaf to it and insert filled leaf into tree
+    private void linkLatestLeaf(NestNodeLeaf leaf, NestNodeLeaf newLeaf) throws TimeseriesException {
+        newLeaf.serializeIfDirty();
+
+        leaf.endTimestamp = newLeaf.beginTimestamp - 1;
+        leaf.succRID = newLeaf.document.getIdentity();
+        leaf.dirty = true;
+        if (leaf.statistics == null){
+            leaf.statistics = dataType.newEmptyStatistics();
+            leaf.datapoints.insertIntoStatistics(leaf.statistics);
+        }
+        insertLeafToTree(leaf, null, null, rootSplitCallback);
+
+        latest = new ChildInfo(newLeaf.document.getIdentity(), newLeaf.beginTimestamp, null, newLeaf);
+        dirty = true;
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return super.estimatedBytes() + (latest.node == null ? 0 : latest.node.estimatedBytes()) + (buffer == null ? 0 : buffer.estimatedBytes());
+    }
+
+    // buffered data points within period, empty if none
+    private Collection<OutOfOrderBuffer.Entry> bufferedEntries(long startTime, long endTime) throws TimeseriesException {
+        if (!hasBuffer() || startTime >= latest.beginTime) return List.of();
+        if (buffer == null) loadBuffer();
+        return buffer.entries(startTime, endTime);
+    }
+
+    // data point in tree at timestamp older than latest leaf, null if none
+    private DataPoint lookupOld(long timestamp) throws TimeseriesException {
+        DataPointList list = super.periodQuery(timestamp, timestamp, 1);
+        return list.hasNext() ? list.next() : null;
+    }
+
+    /**
+     * merge buffered data points within period into statistics of data points in tree.
+     * @return false if statistics should be recomputed, as a replaced data point can not be removed from it
+     */
+    private boolean mergeBuffered(Collection<OutOfOrderBuffer.Entry> entries, Statistics statistics) throws TimeseriesException {
+        for (OutOfOrderBuffer.Entry entry : entries){
+            DataPoint old = lookupOld(entry.dataPoint.timestamp);
+            if (old == null) statistics.insert(entry.dataPoint);
+            else if (entry.overwrite && !statistics.update(old, entry.dataPoint)) return false;
+        }
+        return true;
+    }
+
+    // statistics of merged data points within period
+    private Statistics scanMerged(long startTime, long endTime) throws TimeseriesException {
+        Statistics result = dataType.newEmptyStatistics();
+        DataPointCursor cursor = periodCursor(startTime, endTime, -1);
+        while (cursor.hasNext()) result.insert(cursor.next());
+        return result;
+    }
+
     @Override
     public Statistics aggregativeQuery(long startTime, long endTime) throws TimeseriesException {
         Statistics result = dataType.newEmptyStatistics();
@@ -116,9 +317,42 @@ public class NestNodeRoot extends NestNodeInternal {
             if (latest.node == null) loadLatestNode();
             result.merge(latest.node.aggregativeQuery(startTime, endTime));
         }
+        Collection<OutOfOrderBuffer.Entry> entries = bufferedEntries(startTime, endTime);
+        if (!entries.isEmpty() && !mergeBuffered(entries, result)) return scanMerged(startTime, endTime);
         return result;
     }
 
+    @Override
+    public void aggregateByWindow(long startTime, long endTime, long windowSize, Statistics[] windows) throws TimeseriesException {
+        if (startTime < latest.beginTime) super.aggregateByWindow(startTime, endTime, windowSize, windows);
+        if (endTime >= latest.beginTime){
+            if (latest.node == null) loadLatestNode();
+            latest.node.aggregateByWindow(startTime, endTime, windowSize, windows);
+        }
+        // entries are in timestamp order, merge them window by window
+        List<OutOfOrderBuffer.Entry> windowEntries = new ArrayList<>();
+        int index = -1;
+        for (OutOfOrderBuffer.Entry entry : bufferedEntries(startTime, endTime)){
+            int entryIndex = windowIndex(entry.dataPoint.timestamp, startTime, windowSize);
+            if (entryIndex != index){
+                mergeBufferedIntoWindow(windowEntries, index, startTime, endTime, windowSize, windows);
+                windowEntries.clear();
+                index = entryIndex;
+            }
+            windowEntries.add(entry);
+        }
+        mergeBufferedIntoWindow(windowEntries, index, startTime, endTime, windowSize, windows);
+    }
+
+    // merge buffered entries of one window, or rescan the window once, which covers all of them
+    private void mergeBufferedIntoWindow(List<OutOfOrderBuffer.Entry> entries, int index, long startTime, long endTime, long windowSize, Statistics[] windows) throws TimeseriesException {
+        if (entries.isEmpty() || mergeBuffered(entries, windows[index])) return;
+        long windowStart = startTime + index * windowSize;
+        // end of last window may overflow
+        long windowEnd = windowStart + windowSize - 1 < windowStart ? endTime : Math.min(endTime, windowStart + windowSize - 1);
+        windows[index] = scanMerged(windowStart, windowEnd);
+    }
+
     @Override
     public DataPointList periodQuery(long startTime, long endTime, int limit) throws TimeseriesException {
         // period start from latest block
@@ -126,6 +360,24 @@ public class NestNodeRoot extends NestNodeInternal {
             if (latest.node == null) loadLatestNode();
             return latest.node.periodQuery(startTime, endTime, limit);
         }
-        return super.periodQuery(startTime, endTime, limit);
+        if (bufferedEntries(startTime, endTime).isEmpty()) return super.periodQuery(startTime, endTime, limit);
+
+        DataPointList result = new DataPointList();
+        DataPointCursor cursor = periodCursor(startTime, endTime, limit);
+        while (cursor.hasNext()) result.dataPointList.add(cursor.next());
+        return result;
+    }
+
+    @Override
+    public DataPointCursor periodCursor(long startTime, long endTime, int limit) throws TimeseriesException {
+        // period start from latest block
+        if (startTime >= latest.beginTime) {
+            if (latest.node == null) loadLatestNode();
+            return latest.node.periodCursor(startTime, endTime, limit);
+        }
+        DataPointCursor cursor = super.periodCursor(startTime, endTime, limit);
+        Collection<OutOfOrderBuffer.Entry> entries = bufferedEntries(startTime, endTime);
+        if (!entries.isEmpty()) cursor.mergeBuffered(entries, limit);
+        return cursor;
     }
 }
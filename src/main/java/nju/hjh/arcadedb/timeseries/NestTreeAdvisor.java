@@ -0,0 +1,60 @@
+package nju.hjh.arcadedb.timeseries;
+
+import lombok.Getter;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.types.DataType;
+
+import java.util.Collection;
+
+/**
+ * pick tree degree and data block size for a new metric from its first observed data points.
+ * a leaf is sized to hold about LEAF_TARGET_SPAN of data at observed ingest rate and point width,
+ * so high-frequency metrics get large leaves and sparse metrics do not waste space.
+ */
+@Getter
+public class NestTreeAdvisor {
+    // time span(ms) of data a leaf is expected to hold
+    public static final long LEAF_TARGET_SPAN = 10 * 60 * 1000L;
+    public static final int SPARSE_TREE_DEGREE = 16;
+    public static final int DENSE_TREE_DEGREE = 64;
+
+    private final int degree;
+    private final int dataBlockSize;
+
+    /**
+     * @param dataType data type of metric
+     * @param samples data points observed before tree created
+     */
+    public NestTreeAdvisor(DataType dataType, Collection<DataPoint> samples) {
+        long firstTime = Long.MAX_VALUE, lastTime = Long.MIN_VALUE;
+        long totalBytes = 0;
+        for (DataPoint sample : samples){
+            firstTime = Math.min(firstTime, sample.timestamp);
+            lastTime = Math.max(lastTime, sample.timestamp);
+            totalBytes += dataType.isFixed() ? dataType.maxDataPointBytes() : sample.realBytesRequired();
+        }
+
+        // rate unknown, use default
+        if (samples.size() < 2 || lastTime <= firstTime){
+            degree = NestNode.DEFAULT_TREE_DEGREE;
+            dataBlockSize = NestNode.DEFAULT_DATA_BLOCK_SIZE;
+            return;
+        }
+
+        // bytes ingested within target span, samples.size()-1 intervals in [firstTime, lastTime]
+        double bytesPerMs = (double) totalBytes * (samples.size()-1) / samples.size() / (lastTime - firstTime);
+        long targetBytes = (long) Math.min(bytesPerMs * LEAF_TARGET_SPAN, NestNode.MAX_DATA_BLOCK_SIZE);
+        long minBytes = Math.max(targetBytes, NestNode.minDataBlockSize(dataType));
+        int blockSize = NestNode.MIN_DATA_BLOCK_SIZE;
+        while (blockSize < minBytes && blockSize < NestNode.MAX_DATA_BLOCK_SIZE) blockSize <<= 1;
+        dataBlockSize = Math.min(blockSize, NestNode.MAX_DATA_BLOCK_SIZE);
+
+        // more leaves are created per day with large blocks, use wider nodes to keep tree low
+        if (dataBlockSize == NestNode.MAX_DATA_BLOCK_SIZE)
+            degree = DENSE_TREE_DEGREE;
+        else if (dataBlockSize == NestNode.MIN_DATA_BLOCK_SIZE)
+            degree = SPARSE_TREE_DEGREE;
+        else
+            degree = NestNode.DEFAULT_TREE_DEGREE;
+    }
+}
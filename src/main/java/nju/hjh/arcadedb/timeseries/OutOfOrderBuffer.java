@@ -0,0 +1,138 @@
+package nju.hjh.arcadedb.timeseries;
+
+import com.arcadedb.database.Binary;
+import com.arcadedb.database.Database;
+import com.arcadedb.database.Document;
+import com.arcadedb.database.MutableDocument;
+import com.arcadedb.database.RID;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.TreeMap;
+
+/**
+ * buffer of data points older than latest leaf, kept in one document of node type and referenced by root.
+ * out-of-order data points are collected here in timestamp order instead of rewriting old leaves point by point,
+ * queries merge them on read, and they are inserted into leaves in one batch when flushed by root.
+ */
+public class OutOfOrderBuffer {
+    public static final byte BLOCK_TYPE = 6;
+    // block type(1B) + entry count(4B)
+    public static final int HEADER_SIZE = 5;
+    // overwrite flag(1B) before each data point
+    public static final int ENTRY_HEADER_SIZE = 1;
+
+    public static class Entry {
+        public final DataPoint dataPoint;
+        // replace data point at same timestamp in tree as UPDATE, or give way to it as IGNORE
+        public final boolean overwrite;
+
+        public Entry(DataPoint dataPoint, boolean overwrite) {
+            this.dataPoint = dataPoint;
+            this.overwrite = overwrite;
+        }
+    }
+
+    private final NestNodeRoot root;
+    // null until first serialized
+    public Document document;
+    private final TreeMap<Long, Entry> entries = new TreeMap<>();
+    // bytes of entries, bounded by data block size of tree
+    private int bytesUsed = 0;
+    public boolean dirty = false;
+
+    public OutOfOrderBuffer(NestNodeRoot root, Document document) {
+        this.root = root;
+        this.document = document;
+    }
+
+    public static OutOfOrderBuffer load(NestNodeRoot root, RID rid) throws TimeseriesException {
+        Database database = (Database) rid.getDatabase();
+        Document document = database.lookupByRID(rid, true).asDocument();
+        Binary binary = new Binary(document.getBinary(NestNode.PROP_NODE_BINARY));
+        if (binary.getByte() != BLOCK_TYPE) throw new TimeseriesException("non-buffer node found when loading out-of-order buffer");
+
+        OutOfOrderBuffer buffer = new OutOfOrderBuffer(root, document);
+        int count = binary.getInt();
+        for (int i=0; i<count; i++){
+            boolean overwrite = binary.getByte() != 0;
+            DataPoint dataPoint = root.dataType.newEmptyDataPoint();
+            dataPoint.deserialize(binary);
+            buffer.entries.put(dataPoint.timestamp, new Entry(dataPoint, overwrite));
+            buffer.bytesUsed += ENTRY_HEADER_SIZE + dataPoint.realBytesRequired();
+        }
+        return buffer;
+    }
+
+    /**
+     * buffer data point, combined with the one buffered at same timestamp as strategy of the later one does
+     * @param overwrite true for UPDATE, false for IGNORE
+     * @return false if buffer has no room for data point
+     */
+    public boolean add(DataPoint data, boolean overwrite) {
+        Entry existing = entries.get(data.timestamp);
+        if (existing != null && !overwrite) return true;
+        int bytes = ENTRY_HEADER_SIZE + data.realBytesRequired();
+        if (existing != null) bytes -= ENTRY_HEADER_SIZE + existing.dataPoint.realBytesRequired();
+        if (bytesUsed + bytes > root.dataBlockSize) return false;
+
+        // an update keeps being an update of tree, even if replacing an ignorable one
+        entries.put(data.timestamp, new Entry(data, overwrite));
+        bytesUsed += bytes;
+        dirty = true;
+        return true;
+    }
+
+    public boolean contains(long timestamp) {
+        return entries.containsKey(timestamp);
+    }
+
+    // entries in timestamp order
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    // entries within [startTime, endTime] in timestamp order
+    public Collection<Entry> entries(long startTime, long endTime) {
+        if (startTime > endTime) return Collections.emptyList();
+        return entries.subMap(startTime, true, endTime, true).values();
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public void serializeIfDirty() throws TimeseriesException {
+        if (!dirty) return;
+        if (document == null) document = root.document.getDatabase().newDocument(root.documentType);
+
+        int infoSize = HEADER_SIZE + root.dataBlockSize;
+        MutableDocument modifiedDocument = document.modify();
+        Binary binary = new Binary(infoSize, false);
+        binary.putByte(BLOCK_TYPE);
+        binary.putInt(entries.size());
+        for (Entry entry : entries.values()){
+            binary.putByte((byte) (entry.overwrite ? 1 : 0));
+            entry.dataPoint.serialize(binary);
+        }
+
+        if (binary.size() > infoSize)
+            throw new TimeseriesException("out-of-order buffer size exceeded");
+
+        binary.size(root.storageSize(binary.size(), infoSize));
+        modifiedDocument.set(NestNode.PROP_NODE_BINARY, binary.toByteArray());
+        root.saveDocument(modifiedDocument);
+        dirty = false;
+    }
+
+    // delete document of flushed buffer
+    public void delete() {
+        if (document != null) root.document.getDatabase().deleteRecord(document);
+    }
+
+    public long estimatedBytes() {
+        return HEADER_SIZE + bytesUsed;
+    }
+}
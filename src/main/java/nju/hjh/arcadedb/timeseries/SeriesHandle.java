@@ -0,0 +1,26 @@
+package nju.hjh.arcadedb.timeseries;
+
+import com.arcadedb.database.RID;
+import lombok.Getter;
+
+/**
+ * tree of an object's metric resolved by {@link NestEngine#getSeries}, reused for many insertions and queries
+ * without decoding object or looking up its metric again.
+ * only RID of root is kept, root is taken from cache of engine by it, and loaded again if dropped from it,
+ * e.g. evicted or modified by a rolled back transaction.
+ * handle resolved in a rolled back transaction creating the tree should no longer be used.
+ */
+public class SeriesHandle {
+    @Getter
+    private final RID objectRID;
+    @Getter
+    private final String metric;
+    @Getter
+    private final RID rootRID;
+
+    SeriesHandle(RID objectRID, String metric, RID rootRID) {
+        this.objectRID = objectRID;
+        this.metric = metric;
+        this.rootRID = rootRID;
+    }
+}
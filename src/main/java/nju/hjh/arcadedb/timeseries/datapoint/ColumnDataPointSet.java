@@ -0,0 +1,337 @@
+package nju.hjh.arcadedb.timeseries.datapoint;
+
+import com.arcadedb.database.Binary;
+import nju.hjh.arcadedb.timeseries.MathUtils;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * data point set of 8-byte fixed-width values, stored as sorted primitive columns.
+ * values are kept as their raw 8-byte bits, the same as how they are serialized.
+ * <p>
+ * the set can also be a read-only view over serialized records (see {@link #wrap(Binary, int)}),
+ * in which case timestamps are binary-searched in place and values are only decoded when accessed.
+ * the view is copied into columns on the first modification.
+ */
+public abstract class ColumnDataPointSet extends DataPointSet {
+    public static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * size of one serialized record:
+     * timestamp(8B) + value(8B)
+     */
+    public static final int RECORD_SIZE = 16;
+
+    protected long[] timestamps;
+    protected long[] values;
+    protected int size = 0;
+
+    // serialized records viewed by this set, null if data points are held in columns
+    private Binary source;
+    private int sourceOffset;
+
+    public ColumnDataPointSet(int capacity) {
+        timestamps = new long[capacity];
+        values = new long[capacity];
+    }
+
+    // wrap raw value bits into data point
+    protected abstract DataPoint newDataPoint(long timestamp, long valueBits);
+
+    // extract raw value bits from data point
+    protected abstract long getValueBits(DataPoint dataPoint) throws TimeseriesException;
+
+    protected abstract ColumnDataPointSet newEmptySet(int capacity);
+
+    // bytes used to encode value against value before it
+    protected abstract int encodedValueBytes(long prevBits, long valueBits);
+
+    // encode value against value before it
+    protected abstract void encodeValue(Binary binary, long prevBits, long valueBits);
+
+    // decode value against value before it
+    protected abstract long decodeValue(Binary binary, long prevBits);
+
+    // insert data points within index range [fromIndex, toIndex) into statistics
+    public abstract void insertIndexRangeIntoStatistics(Statistics statistics, int fromIndex, int toIndex) throws TimeseriesException;
+
+    public long timestampAt(int index){
+        if (source != null) return source.getLong(sourceOffset + index * RECORD_SIZE);
+        return timestamps[index];
+    }
+
+    public long valueBitsAt(int index){
+        if (source != null) return source.getLong(sourceOffset + index * RECORD_SIZE + 8);
+        return values[index];
+    }
+
+    public boolean isView(){
+        return source != null;
+    }
+
+    /**
+     * @return index of timestamp if exist, otherwise (-(insertion point) - 1)
+     */
+    public int indexOf(long timestamp){
+        if (source == null) return Arrays.binarySearch(timestamps, 0, size, timestamp);
+
+        int low = 0, high = size-1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midTime = timestampAt(mid);
+            if (midTime < timestamp)
+                low = mid + 1;
+            else if (midTime > timestamp)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return index of first data point whose timestamp >= target
+     */
+    public int lowerBound(long timestamp){
+        int index = indexOf(timestamp);
+        return index >= 0 ? index : -index-1;
+    }
+
+    /**
+     * @return index after last data point whose timestamp <= target
+     */
+    public int upperBound(long timestamp){
+        int index = indexOf(timestamp);
+        return index >= 0 ? index+1 : -index-1;
+    }
+
+    // copy viewed records into columns
+    protected void materialize(){
+        if (source == null) return;
+        long[] newTimestamps = new long[Math.max(size, INITIAL_CAPACITY)];
+        long[] newValues = new long[newTimestamps.length];
+        for (int i=0; i<size; i++){
+            newTimestamps[i] = timestampAt(i);
+            newValues[i] = valueBitsAt(i);
+        }
+        timestamps = newTimestamps;
+        values = newValues;
+        source = null;
+    }
+
+    protected void ensureCapacity(int capacity){
+        if (capacity <= timestamps.length) return;
+        int newCapacity = Math.max(capacity, timestamps.length + (timestamps.length >> 1));
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        values = Arrays.copyOf(values, newCapacity);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void reserve(int capacity) {
+        if (source == null && capacity <= timestamps.length) return;
+        materialize();
+        ensureCapacity(capacity);
+    }
+
+    @Override
+    public DataPoint get(long timestamp) {
+        int index = indexOf(timestamp);
+        return index >= 0 ? newDataPoint(timestamp, valueBitsAt(index)) : null;
+    }
+
+    @Override
+    public void put(DataPoint dataPoint) throws TimeseriesException {
+        long valueBits = getValueBits(dataPoint);
+        materialize();
+        // append at tail, the most common case
+        if (size == 0 || dataPoint.timestamp > timestamps[size-1]){
+            ensureCapacity(size+1);
+            timestamps[size] = dataPoint.timestamp;
+            values[size] = valueBits;
+            size++;
+            return;
+        }
+
+        int index = indexOf(dataPoint.timestamp);
+        if (index >= 0){
+            values[index] = valueBits;
+            return;
+        }
+        index = -index-1;
+        ensureCapacity(size+1);
+        System.arraycopy(timestamps, index, timestamps, index+1, size-index);
+        System.arraycopy(values, index, values, index+1, size-index);
+        timestamps[index] = dataPoint.timestamp;
+        values[index] = valueBits;
+        size++;
+    }
+
+    @Override
+    public long firstTimestamp() {
+        return size == 0 ? Long.MAX_VALUE : timestampAt(0);
+    }
+
+    @Override
+    public long lastTimestamp() {
+        return size == 0 ? Long.MIN_VALUE : timestampAt(size-1);
+    }
+
+    @Override
+    public DataPoint pollLast() {
+        if (size == 0) return null;
+        size--;
+        return newDataPoint(timestampAt(size), valueBitsAt(size));
+    }
+
+    @Override
+    public DataPointSet splitLast(int count) {
+        materialize();
+        ColumnDataPointSet newSet = newEmptySet(Math.max(count, INITIAL_CAPACITY));
+        System.arraycopy(timestamps, size-count, newSet.timestamps, 0, count);
+        System.arraycopy(values, size-count, newSet.values, 0, count);
+        newSet.size = count;
+        size -= count;
+        return newSet;
+    }
+
+    @Override
+    public void insertIntoStatistics(Statistics statistics) throws TimeseriesException {
+        insertIndexRangeIntoStatistics(statistics, 0, size);
+    }
+
+    @Override
+    public void insertIntoStatistics(Statistics statistics, long startTime, long endTime) throws TimeseriesException {
+        if (startTime > endTime) return;
+        insertIndexRangeIntoStatistics(statistics, lowerBound(startTime), upperBound(endTime));
+    }
+
+    @Override
+    public int collect(long startTime, long endTime, int limit, List<DataPoint> resultList) {
+        if (startTime > endTime) return limit;
+        int toIndex = upperBound(endTime);
+        for (int i = lowerBound(startTime); i < toIndex && limit != 0; i++, limit--)
+            resultList.add(newDataPoint(timestampAt(i), valueBitsAt(i)));
+        return limit;
+    }
+
+    @Override
+    public void serialize(Binary binary) {
+        for (int i=0; i<size; i++){
+            binary.putLong(timestampAt(i));
+            binary.putLong(valueBitsAt(i));
+        }
+    }
+
+    @Override
+    public void deserialize(Binary binary, int count) {
+        materialize();
+        ensureCapacity(size+count);
+        for (int i=0; i<count; i++){
+            timestamps[size] = binary.getLong();
+            values[size] = binary.getLong();
+            size++;
+        }
+    }
+
+    /**
+     * timestamps are encoded as delta-of-delta, the first record stores its timestamp and the second stores its delta
+     */
+    private long deltaOfDeltaAt(int index){
+        if (index == 0) return timestampAt(0);
+        long delta = timestampAt(index) - timestampAt(index-1);
+        if (index == 1) return delta;
+        return delta - (timestampAt(index-1) - timestampAt(index-2));
+    }
+
+    /**
+     * bytes used by record at index in compressed encoding, which depends on the 2 records before it
+     */
+    public int encodedBytesAt(int index){
+        return MathUtils.bytesToWriteSignedNumber(deltaOfDeltaAt(index)) + encodedValueBytes(index == 0 ? 0 : valueBitsAt(index-1), valueBitsAt(index));
+    }
+
+    /**
+     * bytes used by all records in compressed encoding
+     */
+    public int encodedBytes(){
+        int bytes = 0;
+        for (int i=0; i<size; i++)
+            bytes += encodedBytesAt(i);
+        return bytes;
+    }
+
+    /**
+     * serialize all data points in compressed encoding
+     */
+    public void encode(Binary binary){
+        for (int i=0; i<size; i++){
+            binary.putNumber(deltaOfDeltaAt(i));
+            encodeValue(binary, i == 0 ? 0 : valueBitsAt(i-1), valueBitsAt(i));
+        }
+    }
+
+    /**
+     * deserialize <code>count</code> data points in compressed encoding into this empty set
+     */
+    public void decode(Binary binary, int count){
+        materialize();
+        ensureCapacity(count);
+        long prevTime = 0, prevDelta = 0, prevBits = 0;
+        for (int i=0; i<count; i++){
+            long deltaOfDelta = binary.getNumber();
+            long delta = i == 0 ? deltaOfDelta : deltaOfDelta + prevDelta;
+            prevTime += delta;
+            prevDelta = i == 0 ? 0 : delta;
+            prevBits = decodeValue(binary, prevBits);
+            timestamps[i] = prevTime;
+            values[i] = prevBits;
+        }
+        size = count;
+    }
+
+    /**
+     * view <code>count</code> records starting at current position of binary without decoding them,
+     * position of binary is moved to the end of records
+     */
+    @Override
+    public void wrap(Binary binary, int count) {
+        if (size != 0) {
+            deserialize(binary, count);
+            return;
+        }
+        source = binary;
+        sourceOffset = binary.position();
+        size = count;
+        binary.position(sourceOffset + count * RECORD_SIZE);
+    }
+
+    @Override
+    public Iterator<DataPoint> iterator() {
+        return new Iterator<>() {
+            int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public DataPoint next() {
+                if (index >= size) throw new NoSuchElementException();
+                DataPoint dataPoint = newDataPoint(timestampAt(index), valueBitsAt(index));
+                index++;
+                return dataPoint;
+            }
+        };
+    }
+}
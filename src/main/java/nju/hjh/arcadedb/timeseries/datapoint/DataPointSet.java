@@ -0,0 +1,80 @@
+package nju.hjh.arcadedb.timeseries.datapoint;
+
+import com.arcadedb.database.Binary;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+
+import java.util.List;
+
+/**
+ * sorted set of data points held by a leaf node, at most one data point per timestamp
+ */
+public abstract class DataPointSet implements Iterable<DataPoint> {
+    public abstract int size();
+
+    public boolean isEmpty(){
+        return size() == 0;
+    }
+
+    /**
+     * @return data point at target timestamp, null if not exist
+     */
+    public abstract DataPoint get(long timestamp);
+
+    /**
+     * insert data point, replace the existing one at the same timestamp
+     */
+    public abstract void put(DataPoint dataPoint) throws TimeseriesException;
+
+    /**
+     * reserve space for <code>capacity</code> data points, so appending up to it needs no reallocation
+     */
+    public void reserve(int capacity){}
+
+    /**
+     * @return first timestamp in set, Long.MAX_VALUE if empty
+     */
+    public abstract long firstTimestamp();
+
+    /**
+     * @return last timestamp in set, Long.MIN_VALUE if empty
+     */
+    public abstract long lastTimestamp();
+
+    /**
+     * remove and return the last data point, null if empty
+     */
+    public abstract DataPoint pollLast();
+
+    /**
+     * remove last <code>count</code> data points from this set and return them as a new set
+     */
+    public abstract DataPointSet splitLast(int count);
+
+    // insert all data points into statistics
+    public abstract void insertIntoStatistics(Statistics statistics) throws TimeseriesException;
+
+    // insert data points within [startTime, endTime] into statistics
+    public abstract void insertIntoStatistics(Statistics statistics, long startTime, long endTime) throws TimeseriesException;
+
+    /**
+     * append data points within [startTime, endTime] to result list
+     * @param limit max count of data points to append, negative for unlimited
+     * @return limit remained after appending
+     */
+    public abstract int collect(long startTime, long endTime, int limit, List<DataPoint> resultList);
+
+    // serialize all data points into binary
+    public abstract void serialize(Binary binary);
+
+    // deserialize <code>count</code> data points from binary
+    public abstract void deserialize(Binary binary, int count);
+
+    /**
+     * load <code>count</code> serialized data points from binary, which may be decoded lazily on access.
+     * binary should not be modified afterwards.
+     */
+    public void wrap(Binary binary, int count){
+        deserialize(binary, count);
+    }
+}
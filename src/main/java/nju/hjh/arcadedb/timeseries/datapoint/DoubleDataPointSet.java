@@ -0,0 +1,81 @@
+package nju.hjh.arcadedb.timeseries.datapoint;
+
+import com.arcadedb.database.Binary;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.DoubleStatistics;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+
+public class DoubleDataPointSet extends ColumnDataPointSet {
+    public DoubleDataPointSet() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public DoubleDataPointSet(int capacity) {
+        super(capacity);
+    }
+
+    public double valueAt(int index){
+        return Double.longBitsToDouble(valueBitsAt(index));
+    }
+
+    @Override
+    protected DataPoint newDataPoint(long timestamp, long valueBits) {
+        return new DoubleDataPoint(timestamp, Double.longBitsToDouble(valueBits));
+    }
+
+    @Override
+    protected long getValueBits(DataPoint dataPoint) throws TimeseriesException {
+        if (dataPoint instanceof DoubleDataPoint dDataPoint)
+            return Double.doubleToLongBits(dDataPoint.value);
+        throw new TimeseriesException("DoubleDataPointSet can only handle DoubleDataPoint");
+    }
+
+    @Override
+    protected ColumnDataPointSet newEmptySet(int capacity) {
+        return new DoubleDataPointSet(capacity);
+    }
+
+    /**
+     * values are encoded as xor against previous value, in byte-aligned form:
+     * header(1B) = leading zero bytes(high 4 bits) + trailing zero bytes(low 4 bits), followed by the meaningful bytes
+     */
+    @Override
+    protected int encodedValueBytes(long prevBits, long valueBits) {
+        long xor = valueBits ^ prevBits;
+        if (xor == 0) return 1;
+        return 9 - (Long.numberOfLeadingZeros(xor) >> 3) - (Long.numberOfTrailingZeros(xor) >> 3);
+    }
+
+    @Override
+    protected void encodeValue(Binary binary, long prevBits, long valueBits) {
+        long xor = valueBits ^ prevBits;
+        if (xor == 0){
+            binary.putByte((byte) 0x80);
+            return;
+        }
+        int leadingBytes = Long.numberOfLeadingZeros(xor) >> 3;
+        int trailingBytes = Long.numberOfTrailingZeros(xor) >> 3;
+        binary.putByte((byte) (leadingBytes << 4 | trailingBytes));
+        for (int shift = (7 - leadingBytes) << 3; shift >= trailingBytes << 3; shift -= 8)
+            binary.putByte((byte) (xor >>> shift));
+    }
+
+    @Override
+    protected long decodeValue(Binary binary, long prevBits) {
+        int header = binary.getByte() & 0xFF;
+        int leadingBytes = header >>> 4;
+        int trailingBytes = header & 0x0F;
+        long xor = 0;
+        for (int i = 8 - leadingBytes - trailingBytes; i > 0; i--)
+            xor = xor << 8 | (binary.getByte() & 0xFF);
+        return prevBits ^ (xor << (trailingBytes << 3));
+    }
+
+    @Override
+    public void insertIndexRangeIntoStatistics(Statistics statistics, int fromIndex, int toIndex) throws TimeseriesException {
+        if (statistics instanceof DoubleStatistics dStats)
+            dStats.insertAll(this, fromIndex, toIndex);
+        else
+            throw new TimeseriesException("DoubleDataPointSet can only be inserted into DoubleStatistics");
+    }
+}
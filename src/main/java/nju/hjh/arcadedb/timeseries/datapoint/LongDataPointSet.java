@@ -0,0 +1,62 @@
+package nju.hjh.arcadedb.timeseries.datapoint;
+
+import com.arcadedb.database.Binary;
+import nju.hjh.arcadedb.timeseries.MathUtils;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.LongStatistics;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+
+public class LongDataPointSet extends ColumnDataPointSet {
+    public LongDataPointSet() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public LongDataPointSet(int capacity) {
+        super(capacity);
+    }
+
+    public long valueAt(int index){
+        return valueBitsAt(index);
+    }
+
+    @Override
+    protected DataPoint newDataPoint(long timestamp, long valueBits) {
+        return new LongDataPoint(timestamp, valueBits);
+    }
+
+    @Override
+    protected long getValueBits(DataPoint dataPoint) throws TimeseriesException {
+        if (dataPoint instanceof LongDataPoint lDataPoint)
+            return lDataPoint.value;
+        throw new TimeseriesException("LongDataPointSet can only handle LongDataPoint");
+    }
+
+    @Override
+    protected ColumnDataPointSet newEmptySet(int capacity) {
+        return new LongDataPointSet(capacity);
+    }
+
+    // values are encoded as zigzag varint of delta
+    @Override
+    protected int encodedValueBytes(long prevBits, long valueBits) {
+        return MathUtils.bytesToWriteSignedNumber(valueBits - prevBits);
+    }
+
+    @Override
+    protected void encodeValue(Binary binary, long prevBits, long valueBits) {
+        binary.putNumber(valueBits - prevBits);
+    }
+
+    @Override
+    protected long decodeValue(Binary binary, long prevBits) {
+        return prevBits + binary.getNumber();
+    }
+
+    @Override
+    public void insertIndexRangeIntoStatistics(Statistics statistics, int fromIndex, int toIndex) throws TimeseriesException {
+        if (statistics instanceof LongStatistics lStats)
+            lStats.insertAll(this, fromIndex, toIndex);
+        else
+            throw new TimeseriesException("LongDataPointSet can only be inserted into LongStatistics");
+    }
+}
@@ -0,0 +1,106 @@
+package nju.hjh.arcadedb.timeseries.datapoint;
+
+import com.arcadedb.database.Binary;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+import nju.hjh.arcadedb.timeseries.types.DataType;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * data point set backed by TreeMap, used by data types without fixed-width primitive value
+ */
+public class MapDataPointSet extends DataPointSet {
+    private final DataType dataType;
+    private final TreeMap<Long, DataPoint> datapoints = new TreeMap<>();
+
+    public MapDataPointSet(DataType dataType) {
+        this.dataType = dataType;
+    }
+
+    @Override
+    public int size() {
+        return datapoints.size();
+    }
+
+    @Override
+    public DataPoint get(long timestamp) {
+        return datapoints.get(timestamp);
+    }
+
+    @Override
+    public void put(DataPoint dataPoint) {
+        datapoints.put(dataPoint.timestamp, dataPoint);
+    }
+
+    @Override
+    public long firstTimestamp() {
+        return datapoints.isEmpty() ? Long.MAX_VALUE : datapoints.firstKey();
+    }
+
+    @Override
+    public long lastTimestamp() {
+        return datapoints.isEmpty() ? Long.MIN_VALUE : datapoints.lastKey();
+    }
+
+    @Override
+    public DataPoint pollLast() {
+        Map.Entry<Long, DataPoint> lastEntry = datapoints.pollLastEntry();
+        return lastEntry == null ? null : lastEntry.getValue();
+    }
+
+    @Override
+    public DataPointSet splitLast(int count) {
+        MapDataPointSet newSet = new MapDataPointSet(dataType);
+        for (int i=0; i<count; i++){
+            DataPoint transPoint = datapoints.pollLastEntry().getValue();
+            newSet.datapoints.put(transPoint.timestamp, transPoint);
+        }
+        return newSet;
+    }
+
+    @Override
+    public void insertIntoStatistics(Statistics statistics) {
+        statistics.insertAll(datapoints);
+    }
+
+    @Override
+    public void insertIntoStatistics(Statistics statistics, long startTime, long endTime) {
+        if (startTime > endTime) return;
+        statistics.insertAll(datapoints.subMap(startTime, true, endTime, true));
+    }
+
+    @Override
+    public int collect(long startTime, long endTime, int limit, List<DataPoint> resultList) {
+        if (startTime > endTime) return limit;
+        for (DataPoint dataPoint : datapoints.subMap(startTime, true, endTime, true).values()){
+            if (limit == 0) break;
+            resultList.add(dataPoint);
+            limit--;
+        }
+        return limit;
+    }
+
+    @Override
+    public void serialize(Binary binary) {
+        for (DataPoint dataPoint : datapoints.values())
+            dataPoint.serialize(binary);
+    }
+
+    @Override
+    public void deserialize(Binary binary, int count) {
+        for (int i=0; i<count; i++){
+            DataPoint newPoint = dataType.newEmptyDataPoint();
+            newPoint.deserialize(binary);
+            datapoints.put(newPoint.timestamp, newPoint);
+        }
+    }
+
+    @Override
+    public Iterator<DataPoint> iterator() {
+        return datapoints.values().iterator();
+    }
+}
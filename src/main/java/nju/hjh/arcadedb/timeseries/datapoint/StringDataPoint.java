@@ -8,7 +8,7 @@ import nju.hjh.arcadedb.timeseries.exception.DuplicateTimestampException;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 
 public class StringDataPoint extends DataPoint{
-    public static int MAX_LENGTH = NestNode.MAX_DATA_BLOCK_SIZE/2 - MathUtils.bytesToWriteUnsignedNumber(NestNode.MAX_DATA_BLOCK_SIZE/2);
+    public static int MAX_LENGTH = NestNode.DEFAULT_DATA_BLOCK_SIZE/2 - MathUtils.bytesToWriteUnsignedNumber(NestNode.DEFAULT_DATA_BLOCK_SIZE/2);
     public String value;
 
     public StringDataPoint(){}
@@ -0,0 +1,8 @@
+package nju.hjh.arcadedb.timeseries.exception;
+
+// task rejected as queue is full
+public class OverloadException extends DatabaseException{
+    public OverloadException(String message) {
+        super(message);
+    }
+}
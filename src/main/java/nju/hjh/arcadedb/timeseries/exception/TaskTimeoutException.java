@@ -0,0 +1,8 @@
+package nju.hjh.arcadedb.timeseries.exception;
+
+// task not started or finished before its deadline
+public class TaskTimeoutException extends DatabaseException{
+    public TaskTimeoutException(String message) {
+        super(message);
+    }
+}
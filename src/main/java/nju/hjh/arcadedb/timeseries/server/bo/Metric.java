@@ -3,7 +3,11 @@ package nju.hjh.arcadedb.timeseries.server.bo;
 import lombok.Getter;
 import lombok.ToString;
 import nju.hjh.arcadedb.timeseries.UpdateStrategy;
-import java.util.Map;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.types.DataType;
+
+import java.util.List;
+import java.util.SortedMap;
 
 @Getter
 @ToString
@@ -12,5 +16,14 @@ public class Metric {
     public String objectId;
     public String metricName;
     public UpdateStrategy strategy;
-    public Map<Long, Object> dataPoints;
+    public SortedMap<Long, Object> dataPoints;
+    // decoded data points in ascending order of timestamp, used instead of dataPoints if not null
+    public DataType dataType;
+    public List<DataPoint> dataPointList;
+    public Integer degree;
+    public Integer dataBlockSize;
+
+    public int pointCount(){
+        return dataPointList != null ? dataPointList.size() : dataPoints.size();
+    }
 }
@@ -5,10 +5,20 @@ import lombok.Getter;
 import lombok.ToString;
 
 import java.util.List;
+import java.util.Set;
 
 @Getter
 @ToString
 public class TimeseriesQuery {
+    public static final String AGGREGATE_COUNT = "count";
+    public static final String AGGREGATE_SUM = "sum";
+    public static final String AGGREGATE_AVERAGE = "avg";
+    public static final String AGGREGATE_MAX = "max";
+    public static final String AGGREGATE_MIN = "min";
+    public static final String AGGREGATE_FIRST = "first";
+    public static final String AGGREGATE_LAST = "last";
+    public static final Set<String> AGGREGATE_TYPES = Set.of(AGGREGATE_COUNT, AGGREGATE_SUM, AGGREGATE_AVERAGE, AGGREGATE_MAX, AGGREGATE_MIN, AGGREGATE_FIRST, AGGREGATE_LAST);
+
     public String objectType;
     public String objectId;
     public Integer ridBucket;
@@ -17,5 +27,8 @@ public class TimeseriesQuery {
     public Long start;
     public Long end;
     public Integer limit;
+    public Long window;
+    public String aggregate;
+    public boolean multiple;
     public List<String> queryFields;
 }
@@ -0,0 +1,21 @@
+package nju.hjh.arcadedb.timeseries.server.config;
+
+import nju.hjh.arcadedb.timeseries.server.data.NestDatabaseManager;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * requests are answered asynchronously when their tasks finish,
+ * so in-flight requests are limited by task queues instead of servlet threads
+ */
+@Configuration
+public class AsyncConfig implements WebMvcConfigurer {
+    // extra time(ms) over task timeout, so timed out task is answered by controller rather than servlet container
+    public static final long ASYNC_TIMEOUT_MARGIN = 5000;
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setDefaultTimeout(NestDatabaseManager.TASK_TIMEOUT + ASYNC_TIMEOUT_MARGIN);
+    }
+}
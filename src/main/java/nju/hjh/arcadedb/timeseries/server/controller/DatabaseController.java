@@ -5,6 +5,7 @@ import nju.hjh.arcadedb.timeseries.server.data.NestDatabaseManager;
 import nju.hjh.arcadedb.timeseries.server.utils.ResponseUtils;
 import org.springframework.web.bind.annotation.*;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -43,4 +44,15 @@ public class DatabaseController {
             return ResponseUtils.getExceptionResponse(e);
         }
     }
+
+    @GetMapping("/metrics")
+    public Map<String, Object> metrics(@RequestParam("name") String dbName) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("status", "ok");
+        result.put("name", dbName);
+        // probing a database not in use should not open it
+        NestDatabaseManager manager = NestDatabaseManager.findDatabaseManager(dbName);
+        result.put("metrics", manager == null ? Collections.emptyMap() : manager.getQueueMetrics());
+        return result;
+    }
 }
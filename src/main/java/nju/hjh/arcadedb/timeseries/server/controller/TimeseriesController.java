@@ -1,5 +1,8 @@
 package nju.hjh.arcadedb.timeseries.server.controller;
 
+import nju.hjh.arcadedb.timeseries.UpdateStrategy;
+import nju.hjh.arcadedb.timeseries.exception.OverloadException;
+import nju.hjh.arcadedb.timeseries.exception.TaskTimeoutException;
 import nju.hjh.arcadedb.timeseries.server.bo.Metric;
 import nju.hjh.arcadedb.timeseries.server.bo.TimeseriesQuery;
 import nju.hjh.arcadedb.timeseries.server.task.TimeseriesInsertTask;
@@ -7,27 +10,48 @@ import nju.hjh.arcadedb.timeseries.server.dto.MetricDto;
 import nju.hjh.arcadedb.timeseries.server.data.NestDatabaseManager;
 import nju.hjh.arcadedb.timeseries.server.dto.TimeseriesQueryDto;
 import nju.hjh.arcadedb.timeseries.server.task.TimeseriesQueryTask;
+import nju.hjh.arcadedb.timeseries.server.task.TimeseriesStreamQueryTask;
+import nju.hjh.arcadedb.timeseries.server.utils.BinaryIngestUtils;
 import nju.hjh.arcadedb.timeseries.server.utils.GsonUtils;
+import nju.hjh.arcadedb.timeseries.server.utils.JsonIngestUtils;
+import nju.hjh.arcadedb.timeseries.server.utils.LineProtocolUtils;
 import nju.hjh.arcadedb.timeseries.server.utils.DtoUtils;
 import nju.hjh.arcadedb.timeseries.server.utils.ResponseUtils;
+import nju.hjh.arcadedb.timeseries.server.utils.StringUtils;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 @RestController
 @RequestMapping("/timeseries")
 public class TimeseriesController {
     private static final Type typeMetricList = new TypeToken<List<MetricDto>>(){}.getType();
     private static final Type typeQueryList = new TypeToken<List<TimeseriesQueryDto>>(){}.getType();
+    // data points inserted and committed together by stream insert
+    public static final int STREAM_INSERT_CHUNK_POINTS = Math.max(1, Integer.getInteger("nest.insert.chunk", 10000));
 
     @PostMapping("/insert")
-    public Map<String, Object> insertTimeseries(@RequestParam("database") String dbName, @RequestBody String jsonMetricDtoList) {
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> insertTimeseries(@RequestParam("database") String dbName, @RequestBody String jsonMetricDtoList) {
         try {
             List<MetricDto> metricDtos = GsonUtils.fromJson(jsonMetricDtoList, typeMetricList);
             List<Metric> metrics = new ArrayList<>();
@@ -37,17 +61,137 @@ public class TimeseriesController {
             if (metrics.isEmpty()) {
                 Map<String, Object> result = new HashMap<>();
                 result.put("status", "ok");
-                return result;
+                return CompletableFuture.completedFuture(ResponseEntity.ok(result));
             }
-            CompletableFuture<Map<String, Object>> resultFuture = NestDatabaseManager.getDatabaseManager(dbName).submitTask(new TimeseriesInsertTask(metrics));
-            return resultFuture.get();
+            return toResponse(NestDatabaseManager.getDatabaseManager(dbName).submitTask(new TimeseriesInsertTask(metrics)));
         } catch (Exception e){
-            return ResponseUtils.getExceptionResponse(e);
+            return CompletableFuture.completedFuture(errorResponse(e));
+        }
+    }
+
+    /**
+     * insert metrics in binary frames decoded by BinaryIngestUtils, avoiding json parsing of data points
+     */
+    @PostMapping(value = "/insert/binary", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> insertBinaryTimeseries(@RequestParam("database") String dbName, @RequestBody byte[] body) {
+        try {
+            List<Metric> metrics = new ArrayList<>();
+            for (Metric metric : BinaryIngestUtils.decodeMetrics(body)) {
+                if (metric.pointCount() > 0) metrics.add(metric);
+            }
+            if (metrics.isEmpty()) {
+                Map<String, Object> result = new HashMap<>();
+                result.put("status", "ok");
+                return CompletableFuture.completedFuture(ResponseEntity.ok(result));
+            }
+            return toResponse(NestDatabaseManager.getDatabaseManager(dbName).submitTask(new TimeseriesInsertTask(metrics)));
+        } catch (Exception e){
+            return CompletableFuture.completedFuture(errorResponse(e));
+        }
+    }
+
+    /**
+     * insert metrics in line protocol decoded by LineProtocolUtils, conflict strategy applies to all series
+     */
+    @PostMapping(value = "/insert/line", consumes = MediaType.TEXT_PLAIN_VALUE)
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> insertLineTimeseries(@RequestParam("database") String dbName,
+                                                                                       @RequestParam(value = "conflict", required = false) String conflict,
+                                                                                       @RequestBody byte[] body) {
+        try {
+            UpdateStrategy strategy = StringUtils.isEmpty(conflict) ? UpdateStrategy.IGNORE : UpdateStrategy.parse(conflict);
+            List<Metric> metrics = LineProtocolUtils.decodeMetrics(body, strategy);
+            if (metrics.isEmpty()) {
+                Map<String, Object> result = new HashMap<>();
+                result.put("status", "ok");
+                return CompletableFuture.completedFuture(ResponseEntity.ok(result));
+            }
+            return toResponse(NestDatabaseManager.getDatabaseManager(dbName).submitTask(new TimeseriesInsertTask(metrics)));
+        } catch (Exception e){
+            return CompletableFuture.completedFuture(errorResponse(e));
+        }
+    }
+
+    /**
+     * same as insert, but body is parsed while being read and inserted in chunks of STREAM_INSERT_CHUNK_POINTS data points,
+     * one chunk is committed while next is parsed, so memory used is bounded regardless of body size.
+     * each chunk is committed on its own, on failure committed chunks are kept and counted in insertedPoints
+     */
+    @PostMapping("/insert/stream")
+    public ResponseEntity<Map<String, Object>> insertStreamTimeseries(@RequestParam("database") String dbName, InputStream body) {
+        ChunkSubmitter submitter = null;
+        Map<String, Object> result;
+        try {
+            submitter = new ChunkSubmitter(NestDatabaseManager.getDatabaseManager(dbName));
+            Reader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            if (JsonIngestUtils.parseMetrics(reader, STREAM_INSERT_CHUNK_POINTS, submitter) && submitter.await()) {
+                result = new HashMap<>();
+                result.put("status", "ok");
+            } else {
+                // failure may be shared with other tasks, copied before adding inserted points
+                result = new HashMap<>(submitter.failure);
+            }
+        } catch (Exception e) {
+            result = ResponseUtils.getExceptionResponse(e);
+            if (submitter != null) {
+                // wait for chunk in progress so that inserted points are exact
+                try {
+                    submitter.await();
+                } catch (Exception ignored) {}
+                result.put("insertedPoints", submitter.insertedPoints);
+            }
+            return ResponseEntity.status(errorStatus(e)).body(result);
+        }
+        result.put("insertedPoints", submitter.insertedPoints);
+        return ResponseEntity.ok(result);
+    }
+
+    // submit chunks of stream insert one after another, keeping at most one chunk in progress
+    private static class ChunkSubmitter implements JsonIngestUtils.ChunkConsumer {
+        final NestDatabaseManager manager;
+        CompletableFuture<Map<String, Object>> pending;
+        int pendingPoints;
+        long insertedPoints = 0;
+        // result of failed chunk
+        Map<String, Object> failure;
+
+        ChunkSubmitter(NestDatabaseManager manager) {
+            this.manager = manager;
+        }
+
+        @Override
+        public boolean accept(List<Metric> chunk) throws Exception {
+            if (!await()) return false;
+            TimeseriesInsertTask task = new TimeseriesInsertTask(chunk);
+            pendingPoints = 0;
+            for (Metric metric : chunk) pendingPoints += metric.pointCount();
+            pending = manager.submitTask(task);
+            return true;
+        }
+
+        // wait for chunk in progress, return false if it failed
+        boolean await() throws Exception {
+            if (pending == null) return failure == null;
+            Map<String, Object> result;
+            try {
+                result = pending.get(NestDatabaseManager.TASK_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new TaskTimeoutException("task not finished in "+NestDatabaseManager.TASK_TIMEOUT+" ms");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            } finally {
+                pending = null;
+            }
+            if (!"ok".equals(result.get("status"))) {
+                failure = result;
+                return false;
+            }
+            insertedPoints += pendingPoints;
+            return true;
         }
     }
 
     @GetMapping("/query")
-    public Map<String, Object> queryTimeseries(@RequestParam("database") String dbName, @RequestBody String jsonQueryDtoList) {
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> queryTimeseries(@RequestParam("database") String dbName, @RequestBody String jsonQueryDtoList) {
         try{
             List<TimeseriesQueryDto> timeseriesQueryDtos = GsonUtils.fromJson(jsonQueryDtoList, typeQueryList);
             List<TimeseriesQuery> queries = new ArrayList<>();
@@ -57,12 +201,79 @@ public class TimeseriesController {
             if (queries.isEmpty()) {
                 Map<String, Object> result = new HashMap<>();
                 result.put("status", "ok");
-                return result;
+                return CompletableFuture.completedFuture(ResponseEntity.ok(result));
             }
-            CompletableFuture<Map<String, Object>> resultFuture = NestDatabaseManager.getDatabaseManager(dbName).submitTask(new TimeseriesQueryTask(queries));
-            return resultFuture.get();
+            return toResponse(NestDatabaseManager.getDatabaseManager(dbName).submitTask(new TimeseriesQueryTask(queries)));
         } catch (Exception e){
-            return ResponseUtils.getExceptionResponse(e);
+            return CompletableFuture.completedFuture(errorResponse(e));
         }
     }
+
+    /**
+     * same as query, but data points are written into response while being read,
+     * so large result is neither limited by max limit nor collected in memory
+     */
+    @GetMapping("/query/stream")
+    public ResponseEntity<StreamingResponseBody> streamQueryTimeseries(@RequestParam("database") String dbName, @RequestBody String jsonQueryDtoList) {
+        List<TimeseriesQuery> queries = new ArrayList<>();
+        NestDatabaseManager manager;
+        try{
+            List<TimeseriesQueryDto> timeseriesQueryDtos = GsonUtils.fromJson(jsonQueryDtoList, typeQueryList);
+            for (TimeseriesQueryDto timeseriesQueryDto : timeseriesQueryDtos) {
+                if (DtoUtils.validateTimeseriesQueryDto(timeseriesQueryDto, TimeseriesQueryDto.MAX_STREAM_LIMIT))
+                    queries.add(DtoUtils.convertTimeseriesQueryDto2Bo(timeseriesQueryDto, -1));
+            }
+            manager = NestDatabaseManager.getDatabaseManager(dbName);
+            manager.checkReadCapacity();
+        } catch (Exception e){
+            return jsonResponse(errorStatus(e), ResponseUtils.getExceptionResponse(e));
+        }
+        if (queries.isEmpty()) {
+            Map<String, Object> result = new HashMap<>();
+            result.put("status", "ok");
+            return jsonResponse(HttpStatus.OK, result);
+        }
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(outputStream -> {
+            Map<String, Object> status;
+            try {
+                // reader writing after timeout fails on the closed stream and rolls back
+                status = manager.submitTask(new TimeseriesStreamQueryTask(queries, outputStream)).get(NestDatabaseManager.TASK_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                throw new IOException(new TaskTimeoutException("task not finished in "+NestDatabaseManager.TASK_TIMEOUT+" ms"));
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            if (!"ok".equals(status.get("status"))) throw new IOException("stream query failed: "+status.get("message"));
+        });
+    }
+
+    private static ResponseEntity<StreamingResponseBody> jsonResponse(HttpStatus status, Map<String, Object> result){
+        String json = GsonUtils.toJson(result);
+        return ResponseEntity.status(status).contentType(MediaType.APPLICATION_JSON).body(outputStream -> outputStream.write(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * response completed with result of task without holding request thread, or error if task failed or timed out
+     */
+    private static CompletableFuture<ResponseEntity<Map<String, Object>>> toResponse(CompletableFuture<Map<String, Object>> resultFuture){
+        return resultFuture.orTimeout(NestDatabaseManager.TASK_TIMEOUT, TimeUnit.MILLISECONDS).handle((result, e) -> {
+            if (e == null) return ResponseEntity.ok(result);
+            Throwable cause = e;
+            while (cause instanceof CompletionException && cause.getCause() != null) cause = cause.getCause();
+            if (cause instanceof TimeoutException)
+                cause = new TaskTimeoutException("task not finished in "+NestDatabaseManager.TASK_TIMEOUT+" ms");
+            return errorResponse(cause);
+        });
+    }
+
+    // overloaded server responds 429 and timed out task 503, other errors are in response body
+    private static HttpStatus errorStatus(Throwable e){
+        if (e instanceof OverloadException) return HttpStatus.TOO_MANY_REQUESTS;
+        if (e instanceof TaskTimeoutException) return HttpStatus.SERVICE_UNAVAILABLE;
+        return HttpStatus.OK;
+    }
+
+    private static ResponseEntity<Map<String, Object>> errorResponse(Throwable e){
+        return ResponseEntity.status(errorStatus(e)).body(ResponseUtils.getExceptionResponse(e));
+    }
 }
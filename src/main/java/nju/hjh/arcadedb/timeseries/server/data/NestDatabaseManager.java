@@ -6,9 +6,13 @@ import lombok.Setter;
 import nju.hjh.arcadedb.timeseries.NestEngine;
 import nju.hjh.arcadedb.timeseries.exception.DatabaseException;
 import nju.hjh.arcadedb.timeseries.exception.MessageParsingException;
+import nju.hjh.arcadedb.timeseries.exception.OverloadException;
+import nju.hjh.arcadedb.timeseries.exception.TaskTimeoutException;
+import nju.hjh.arcadedb.timeseries.server.bo.Metric;
 import nju.hjh.arcadedb.timeseries.server.task.DatabaseTask;
 import nju.hjh.arcadedb.timeseries.server.task.TimeseriesInsertTask;
 import nju.hjh.arcadedb.timeseries.server.task.TimeseriesQueryTask;
+import nju.hjh.arcadedb.timeseries.server.task.TimeseriesStreamQueryTask;
 import nju.hjh.arcadedb.timeseries.server.utils.ResponseUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,20 +20,93 @@ import org.slf4j.LoggerFactory;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class NestDatabaseManager {
     public static final String DATABASE_DIR = "./databases";
+    /**
+     * count of workers per database, set by system property "nest.worker.shards".
+     * workers share the database but run their own transactions, insertions are partitioned by node type of their trees,
+     * so nodes of a type are always modified by the same worker.
+     */
+    public static final int SHARD_COUNT = Math.max(1, Integer.getInteger("nest.worker.shards", 1));
+    /**
+     * count of node document types shared by new trees, set by system property "nest.node.types".
+     * 0 by default creates a node type per object bucket and metric, as trees created by older versions,
+     * pooled types are opt-in as existing trees stay in their types once new trees are created in the pool
+     */
+    public static final int NODE_TYPE_POOL_SIZE = Math.max(0, Integer.getInteger("nest.node.types", 0));
+    // count of buckets of node types created, set by system property "nest.node.buckets", each tree is kept in one of them, 1 by default as older versions
+    public static final int NODE_TYPE_BUCKETS = Math.max(1, Integer.getInteger("nest.node.buckets", 1));
+    // max count of queued insert tasks committed in one transaction
+    public static final int MAX_GROUP_COMMIT_TASKS = 256;
+    /**
+     * count of reader threads per database, set by system property "nest.query.readers".
+     * queries are served by readers in read only transactions instead of queueing behind insertions of workers
+     */
+    public static final int READER_COUNT = Math.max(1, Integer.getInteger("nest.query.readers", 4));
+    // max count of tasks queued for each worker and for readers, more tasks are rejected
+    public static final int MAX_QUEUED_TASKS = Math.max(1, Integer.getInteger("nest.queue.capacity", 1024));
+    // time(ms) a task may wait and run before its result is given up
+    public static final long TASK_TIMEOUT = Math.max(1, Long.getLong("nest.task.timeout", 30000));
+    /**
+     * keep out-of-order data points inserted by UPDATE or IGNORE in buffers of trees, set by system property "nest.insert.buffer".
+     * off by default as engine, since buffered roots are written in a header format older versions can not read.
+     * buffers are flushed into leaves when filled, or by worker idle for BUFFER_FLUSH_DELAY(ms) set by "nest.buffer.flush.delay"
+     */
+    public static final boolean BUFFER_OUT_OF_ORDER = Boolean.parseBoolean(System.getProperty("nest.insert.buffer", "false"));
+    public static final long BUFFER_FLUSH_DELAY = Math.max(1, Long.getLong("nest.buffer.flush.delay", 1000));
+    private static final AtomicLong taskSequence = new AtomicLong();
     private static final HashMap<String, NestDatabaseManager> DATABASE_INSTANCES = new HashMap<>();
     private static final Logger logger = LoggerFactory.getLogger(NestDatabaseManager.class);
 
-    private static class TaskWithFuture{
+    private static class TaskWithFuture implements Comparable<TaskWithFuture>{
         public DatabaseTask task;
         public CompletableFuture<Map<String, Object>> resultFuture;
+        // tasks of same priority are handled in submit order
+        public final long sequence = taskSequence.incrementAndGet();
+        public final long submitTime = System.nanoTime();
 
         public TaskWithFuture(DatabaseTask task, CompletableFuture<Map<String, Object>> resultFuture) {
             this.task = task;
             this.resultFuture = resultFuture;
         }
+
+        @Override
+        public int compareTo(TaskWithFuture other) {
+            int cmp = Integer.compare(task.getPriority(), other.task.getPriority());
+            return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // query task run by reader, holding future to complete if never run
+    private static class ReadTask extends TaskWithFuture implements Runnable{
+        private final NestDatabaseManager manager;
+
+        public ReadTask(NestDatabaseManager manager, DatabaseTask task) {
+            super(task, new CompletableFuture<>());
+            this.manager = manager;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (manager.expireIfOverdue(this)) return;
+                NestEngine engine = manager.readerEngine.get();
+                if (task instanceof TimeseriesQueryTask queryTask) {
+                    resultFuture.complete(NestDatabaseTaskHandler.handleTimeseriesQueryTask(engine, queryTask));
+                }else if (task instanceof TimeseriesStreamQueryTask streamQueryTask) {
+                    resultFuture.complete(NestDatabaseTaskHandler.handleTimeseriesStreamQueryTask(engine, streamQueryTask));
+                }else {
+                    resultFuture.complete(ResponseUtils.getExceptionResponse(new MessageParsingException("unknown read task class "+task.getClass().getName())));
+                }
+            } catch (Exception e){
+                resultFuture.complete(ResponseUtils.getExceptionResponse(e));
+            } finally {
+                manager.pendingReads.decrementAndGet();
+            }
+        }
     }
 
     private interface DatabaseFetcher{
@@ -42,20 +119,39 @@ public class NestDatabaseManager {
 
     private static class NestDatabaseWorker implements Runnable{
         private static final Logger logger = LoggerFactory.getLogger(NestDatabaseWorker.class);
-        private static final Map<String, Object> INTERRUPT_RESPONSE = ResponseUtils.getExceptionResponse(new DatabaseException("worker interrupted, database closing or dropping"));
-        private final BlockingQueue<TaskWithFuture> taskQueue = new LinkedBlockingQueue<>();
+        // built for each task, as callers may add fields to the response
+        private static Map<String, Object> interruptResponse(){
+            return ResponseUtils.getExceptionResponse(new DatabaseException("worker interrupted, database closing or dropping"));
+        }
+        private final BlockingQueue<TaskWithFuture> taskQueue = new PriorityBlockingQueue<>();
         private final NestDatabaseManager manager;
         private final DatabaseFetcher fetcher;
+        // primary worker opens the database and closes manager for timeout, others share database of primary
+        private final boolean primary;
+        // tasks submitted but not finished
+        private final AtomicInteger pendingTasks = new AtomicInteger();
+        private Database database;
         @Setter
         private DatabaseDestoryer destoryer = Database::close;
         private final CompletableFuture<Void> databaseStartup = new CompletableFuture<>();
 
-        public NestDatabaseWorker(NestDatabaseManager manager, DatabaseFetcher fetcher) {
+        public NestDatabaseWorker(NestDatabaseManager manager, DatabaseFetcher fetcher, boolean primary) {
             this.manager = manager;
             this.fetcher = fetcher;
+            this.primary = primary;
+            if (!primary) destoryer = database -> {};
+        }
+
+        public boolean isIdle() {
+            return pendingTasks.get() == 0;
         }
 
-        public void submit(TaskWithFuture task) throws InterruptedException {
+        public void submit(TaskWithFuture task) throws InterruptedException, OverloadException {
+            if (taskQueue.size() >= MAX_QUEUED_TASKS){
+                manager.rejectedTasks.incrementAndGet();
+                throw new OverloadException("task queue of '" + manager.dbName + "' is full");
+            }
+            pendingTasks.incrementAndGet();
             taskQueue.put(task);
         }
 
@@ -71,46 +167,99 @@ public class NestDatabaseManager {
 
         @Override
         public void run() {
-            NestEngine engine = new NestEngine(fetcher.fetch());
+            database = fetcher.fetch();
+            NestEngine engine = new NestEngine(database);
+            engine.setBufferOutOfOrder(BUFFER_OUT_OF_ORDER);
+            engine.setNodeTypePoolSize(NODE_TYPE_POOL_SIZE);
+            engine.setNodeTypeBuckets(NODE_TYPE_BUCKETS);
             databaseStartup.complete(null);
             try {
                 while (true) {
-                    TaskWithFuture task = taskQueue.poll(60, TimeUnit.SECONDS);
+                    boolean buffered = engine.hasBufferedTrees();
+                    TaskWithFuture task = buffered ? taskQueue.poll(BUFFER_FLUSH_DELAY, TimeUnit.MILLISECONDS) : taskQueue.poll(60, TimeUnit.SECONDS);
+                    if (task == null && buffered) {
+                        flushBuffers(engine);
+                        continue;
+                    }
                     if (task == null) {
+                        if (!primary) continue;
                         // close due to timeout
-                        logger.info("closing database manager of '{}' for timeout", manager.dbName);
                         synchronized (manager){
+                            if (!manager.isAllWorkersIdle()) continue;
+                            logger.info("closing database manager of '{}' for timeout", manager.dbName);
                             manager.isAvailable.set(false);
                             NestDatabaseManager.removeDatabaseManager(manager.dbName, manager);
+                            manager.stopReaders();
+                            manager.stopSecondaryWorkers();
                         }
                         break;
                     }
+                    if (manager.expireIfOverdue(task)){
+                        pendingTasks.decrementAndGet();
+                        continue;
+                    }
                     DatabaseTask innerTask = task.task;
                     CompletableFuture<Map<String, Object>> resultFuture = task.resultFuture;
-                    if (innerTask instanceof TimeseriesInsertTask insertTask){
-                        resultFuture.complete(NestDatabaseTaskHandler.handleTimeseriesInsertTask(engine, insertTask));
-                    }else if (innerTask instanceof TimeseriesQueryTask queryTask) {
-                        resultFuture.complete(NestDatabaseTaskHandler.handleTimeseriesQueryTask(engine, queryTask));
+                    if (innerTask instanceof TimeseriesInsertTask){
+                        // group insert tasks queued right after this one into the same commit
+                        List<TaskWithFuture> group = new ArrayList<>();
+                        group.add(task);
+                        while (group.size() < MAX_GROUP_COMMIT_TASKS && taskQueue.peek() != null && taskQueue.peek().task instanceof TimeseriesInsertTask){
+                            TaskWithFuture next = taskQueue.poll();
+                            if (manager.expireIfOverdue(next)) pendingTasks.decrementAndGet();
+                            else group.add(next);
+                        }
+                        List<TimeseriesInsertTask> insertTasks = new ArrayList<>();
+                        for (TaskWithFuture groupTask : group) insertTasks.add((TimeseriesInsertTask) groupTask.task);
+                        List<Map<String, Object>> results = NestDatabaseTaskHandler.handleTimeseriesInsertTasks(engine, insertTasks);
+                        for (int i=0; i<group.size(); i++) group.get(i).resultFuture.complete(results.get(i));
+                        pendingTasks.addAndGet(1-group.size());
                     }else {
                         resultFuture.complete(ResponseUtils.getExceptionResponse(new MessageParsingException("unknown task class "+innerTask.getClass().getName())));
                     }
+                    pendingTasks.decrementAndGet();
                 }
             } catch (InterruptedException e){
                 logger.info("database worker of '{}' interrupted", manager.dbName);
             } finally {
                 TaskWithFuture task;
                 while ((task = taskQueue.poll()) != null){
-                    task.resultFuture.complete(INTERRUPT_RESPONSE);
+                    task.resultFuture.complete(interruptResponse());
                 }
                 destoryer.destroy(engine.getDatabase());
             }
         }
+
+        // flush out-of-order buffers of trees written by worker, including evicted ones, trees failed to flush stay buffered and are flushed on next idle poll
+        private void flushBuffers(NestEngine engine) {
+            engine.begin();
+            try {
+                int flushed = engine.flushBuffers();
+                engine.commit();
+                logger.debug("flushed out-of-order buffers of {} trees in '{}'", flushed, manager.dbName);
+            } catch (Exception e) {
+                engine.rollback();
+                logger.warn("failed to flush out-of-order buffers in '{}'", manager.dbName, e);
+            }
+        }
     }
 
     private final String dbName;
     private final DatabaseFactory dbFactory;
-    private NestDatabaseWorker worker;
-    private Thread workerThread;
+    // workers[0] is the primary worker
+    private NestDatabaseWorker[] workers;
+    private Thread[] workerThreads;
+    private ThreadPoolExecutor readers;
+    // engine of each reader thread, on database of primary worker
+    private final ThreadLocal<NestEngine> readerEngine = ThreadLocal.withInitial(() -> new NestEngine(workers[0].database));
+    // read tasks submitted but not finished
+    private final AtomicInteger pendingReads = new AtomicInteger();
+    // queue metrics since manager opened
+    private final AtomicLong waitedTasks = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private final AtomicLong expiredTasks = new AtomicLong();
     private AtomicBoolean isAvailable = new AtomicBoolean(true);
 
     private NestDatabaseManager(String name){
@@ -135,6 +284,13 @@ public class NestDatabaseManager {
         }
     }
 
+    // manager of database already in use, null if none, without creating one
+    public static NestDatabaseManager findDatabaseManager(String dbName) {
+        synchronized (DATABASE_INSTANCES) {
+            return DATABASE_INSTANCES.get(dbName);
+        }
+    }
+
     public static void removeDatabaseManager(String dbName, NestDatabaseManager manager) {
         synchronized (DATABASE_INSTANCES) {
             if (DATABASE_INSTANCES.get(dbName) == manager) DATABASE_INSTANCES.remove(dbName);
@@ -159,32 +315,72 @@ public class NestDatabaseManager {
         if (isDatabaseExists()) {
             throw new DatabaseException("database '" + dbName + "' already exists");
         }
-        if (worker != null) {
+        if (workers != null) {
             throw new DatabaseException("a worker of '" + dbName + "' already running");
         }
         // start worker and create database
-        worker = new NestDatabaseWorker(this, dbFactory::create);
-        workerThread = new Thread(worker);
-        workerThread.start();
-        worker.waitDatabaseStartup();
+        startWorkers(dbFactory::create);
     }
 
     private synchronized void open() throws DatabaseException{
         if (!isDatabaseExists()) throw new DatabaseException("database '" + dbName + "' not exists");
-        if (worker != null) {
+        if (workers != null) {
             throw new DatabaseException("a worker of '" + dbName + "' already running");
         }
         // start worker and open database
-        worker = new NestDatabaseWorker(this, dbFactory::open);
-        workerThread = new Thread(worker);
-        workerThread.start();
-        worker.waitDatabaseStartup();
+        startWorkers(dbFactory::open);
+    }
+
+    private void startWorkers(DatabaseFetcher fetcher) throws DatabaseException {
+        workers = new NestDatabaseWorker[SHARD_COUNT];
+        workerThreads = new Thread[SHARD_COUNT];
+        workers[0] = new NestDatabaseWorker(this, fetcher, true);
+        workerThreads[0] = new Thread(workers[0]);
+        workerThreads[0].start();
+        workers[0].waitDatabaseStartup();
+        for (int i=1; i<SHARD_COUNT; i++){
+            workers[i] = new NestDatabaseWorker(this, () -> workers[0].database, false);
+            workerThreads[i] = new Thread(workers[i]);
+            workerThreads[i].start();
+            workers[i].waitDatabaseStartup();
+        }
+        AtomicInteger readerCount = new AtomicInteger();
+        // queries are handled before stream queries, capacity is checked on submit
+        readers = new ThreadPoolExecutor(READER_COUNT, READER_COUNT, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+                runnable -> new Thread(runnable, "nest-reader-"+dbName+"-"+readerCount.incrementAndGet()));
+    }
+
+    private synchronized boolean isAllWorkersIdle() {
+        if (pendingReads.get() > 0) return false;
+        for (NestDatabaseWorker worker : workers)
+            if (!worker.isIdle()) return false;
+        return true;
+    }
+
+    // readers should be stopped before primary worker closes the database, read tasks never run are interrupted
+    private void stopReaders() throws InterruptedException {
+        if (readers == null) return;
+        for (Runnable runnable : readers.shutdownNow()){
+            ReadTask readTask = (ReadTask) runnable;
+            readTask.resultFuture.complete(NestDatabaseWorker.interruptResponse());
+            pendingReads.decrementAndGet();
+        }
+        readers.awaitTermination(60, TimeUnit.SECONDS);
+    }
+
+    // secondary workers should be stopped before primary one, which closes the database
+    private void stopSecondaryWorkers() throws InterruptedException {
+        if (workerThreads == null) return;
+        for (int i=1; i<workerThreads.length; i++) workerThreads[i].interrupt();
+        for (int i=1; i<workerThreads.length; i++) workerThreads[i].join();
     }
 
     private void stopWorker() throws InterruptedException {
-        if (workerThread != null) {
-            workerThread.interrupt();
-            workerThread.join();
+        if (workerThreads != null) {
+            stopReaders();
+            stopSecondaryWorkers();
+            workerThreads[0].interrupt();
+            workerThreads[0].join();
         }
     }
 
@@ -205,8 +401,8 @@ public class NestDatabaseManager {
         isAvailable.set(false);
         logger.info("closing database manager of '{}' for drop", dbName);
         try {
-            if (worker == null) open();
-            worker.setDestoryer(Database::drop);
+            if (workers == null) open();
+            workers[0].setDestoryer(Database::drop);
             stopWorker();
         } catch (InterruptedException e){
             logger.warn("Interrupted while dropping database {}", dbName);
@@ -217,14 +413,149 @@ public class NestDatabaseManager {
 
     public CompletableFuture<Map<String, Object>> submitTask(DatabaseTask task) throws DatabaseException{
         if (!isAvailable.get()) throw new DatabaseException("database manager of '" + dbName + "' already closed");
-        CompletableFuture<Map<String, Object>> resultFuture = new CompletableFuture<>();
         try {
-            if (worker == null) open();
-            worker.submit(new TaskWithFuture(task, resultFuture));
+            synchronized (this) {
+                if (workers == null) open();
+            }
+            if (task instanceof TimeseriesQueryTask || task instanceof TimeseriesStreamQueryTask)
+                return submitReadTask(task);
+            if (workers.length > 1 && task instanceof TimeseriesInsertTask insertTask)
+                return submitPartitionedInsertTask(insertTask);
+            return submitTaskToWorker(task, 0);
         } catch (InterruptedException e){
             logger.warn("Interrupted while closing NestDatabaseManager on '{}'", dbName);
             throw new DatabaseException("Interrupted while submitting task to '"+dbName+"'");
         }
+    }
+
+    private CompletableFuture<Map<String, Object>> submitReadTask(DatabaseTask task) throws DatabaseException {
+        checkReadCapacity();
+        ReadTask readTask = new ReadTask(this, task);
+        pendingReads.incrementAndGet();
+        try {
+            readers.execute(readTask);
+        } catch (RejectedExecutionException e){
+            pendingReads.decrementAndGet();
+            throw new DatabaseException("database manager of '" + dbName + "' already closed");
+        }
+        return readTask.resultFuture;
+    }
+
+    /**
+     * check if readers can accept more tasks, used before responding to streamed query
+     * @throws OverloadException if queue of readers is full
+     */
+    public void checkReadCapacity() throws DatabaseException {
+        if (!isAvailable.get()) throw new DatabaseException("database manager of '" + dbName + "' already closed");
+        synchronized (this) {
+            if (workers == null) open();
+        }
+        if (readers.getQueue().size() >= MAX_QUEUED_TASKS){
+            rejectedTasks.incrementAndGet();
+            throw new OverloadException("query queue of '" + dbName + "' is full");
+        }
+    }
+
+    // record wait time of task taken from queue, complete it with timeout if waited over deadline
+    private boolean expireIfOverdue(TaskWithFuture task){
+        long waitNanos = System.nanoTime() - task.submitTime;
+        waitedTasks.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        if (waitNanos <= TimeUnit.MILLISECONDS.toNanos(TASK_TIMEOUT)) return false;
+        expiredTasks.incrementAndGet();
+        task.resultFuture.completeExceptionally(new TaskTimeoutException("task of '" + dbName + "' waited "+TimeUnit.NANOSECONDS.toMillis(waitNanos)+" ms in queue"));
+        return true;
+    }
+
+    public Map<String, Object> getQueueMetrics(){
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        List<Integer> workerQueued = new ArrayList<>();
+        NestDatabaseWorker[] currentWorkers = workers;
+        if (currentWorkers != null)
+            for (NestDatabaseWorker worker : currentWorkers) workerQueued.add(worker.taskQueue.size());
+        metrics.put("workerQueued", workerQueued);
+        metrics.put("readerQueued", readers == null ? 0 : readers.getQueue().size());
+        metrics.put("readerActive", readers == null ? 0 : readers.getActiveCount());
+        metrics.put("queueCapacity", MAX_QUEUED_TASKS);
+        long waited = waitedTasks.get();
+        metrics.put("waitedTasks", waited);
+        metrics.put("avgWaitMs", waited == 0 ? 0 : totalWaitNanos.get() / waited / 1e6);
+        metrics.put("maxWaitMs", maxWaitNanos.get() / 1e6);
+        metrics.put("rejectedTasks", rejectedTasks.get());
+        metrics.put("expiredTasks", expiredTasks.get());
+        return metrics;
+    }
+
+    private CompletableFuture<Map<String, Object>> submitTaskToWorker(DatabaseTask task, int workerIndex) throws InterruptedException, OverloadException {
+        CompletableFuture<Map<String, Object>> resultFuture = new CompletableFuture<>();
+        workers[workerIndex].submit(new TaskWithFuture(task, resultFuture));
         return resultFuture;
     }
+
+    // worker modifying trees of metric, each node type pooled or per metric is modified by only one worker
+    private int workerIndexOf(Metric metric){
+        if (NODE_TYPE_POOL_SIZE > 0)
+            return NestEngine.nodeTypePoolIndex(metric.getMetricName(), NODE_TYPE_POOL_SIZE) % workers.length;
+        return Math.floorMod(Objects.hash(metric.getObjectType(), metric.getMetricName()), workers.length);
+    }
+
+    /**
+     * split insert task by node type of trees, each part is committed by its own worker.
+     * parts are not atomic as a whole: result is ok only if all parts are ok, otherwise the first failed part is returned,
+     * while other parts may be committed already, so a retried request should use UPDATE or IGNORE strategy.
+     * objects of a task split to several workers are resolved or created first by one of them,
+     * so workers never create the same object concurrently
+     */
+    private CompletableFuture<Map<String, Object>> submitPartitionedInsertTask(TimeseriesInsertTask task) throws InterruptedException, OverloadException {
+        Map<Integer, List<Metric>> partitions = new TreeMap<>();
+        for (Metric metric : task.getMetrics()){
+            int workerIndex = workerIndexOf(metric);
+            partitions.computeIfAbsent(workerIndex, k -> new ArrayList<>()).add(metric);
+        }
+
+        // reject before any part is queued
+        for (int workerIndex : partitions.keySet()){
+            if (workers[workerIndex].taskQueue.size() >= MAX_QUEUED_TASKS){
+                rejectedTasks.incrementAndGet();
+                throw new OverloadException("task queue of '" + dbName + "' is full");
+            }
+        }
+
+        if (partitions.size() == 1){
+            Map.Entry<Integer, List<Metric>> partition = partitions.entrySet().iterator().next();
+            return submitTaskToWorker(task, partition.getKey());
+        }
+
+        // metrics without data points only resolve or create their objects
+        Map<String, Metric> objects = new LinkedHashMap<>();
+        for (Metric metric : task.getMetrics()){
+            objects.computeIfAbsent(metric.getObjectType() + ':' + metric.getObjectId(), k -> {
+                Metric object = new Metric();
+                object.objectType = metric.getObjectType();
+                object.objectId = metric.getObjectId();
+                object.dataPointList = Collections.emptyList();
+                return object;
+            });
+        }
+        int objectWorkerIndex = partitions.keySet().iterator().next();
+        return submitTaskToWorker(new TimeseriesInsertTask(new ArrayList<>(objects.values())), objectWorkerIndex).thenCompose(objectResult -> {
+            if (!"ok".equals(objectResult.get("status"))) return CompletableFuture.completedFuture(objectResult);
+            List<CompletableFuture<Map<String, Object>>> partFutures = new ArrayList<>();
+            try {
+                for (Map.Entry<Integer, List<Metric>> partition : partitions.entrySet())
+                    partFutures.add(submitTaskToWorker(new TimeseriesInsertTask(partition.getValue()), partition.getKey()));
+            } catch (InterruptedException | OverloadException e) {
+                partFutures.add(CompletableFuture.completedFuture(ResponseUtils.getExceptionResponse(e)));
+            }
+
+            return CompletableFuture.allOf(partFutures.toArray(new CompletableFuture[0])).thenApply(v -> {
+                for (CompletableFuture<Map<String, Object>> partFuture : partFutures){
+                    Map<String, Object> partResult = partFuture.join();
+                    if (!"ok".equals(partResult.get("status"))) return partResult;
+                }
+                return partFutures.get(0).join();
+            });
+        });
+    }
 }
@@ -2,6 +2,10 @@ package nju.hjh.arcadedb.timeseries.server.data;
 
 import com.arcadedb.database.Database;
 import com.arcadedb.database.RID;
+import com.arcadedb.exception.DuplicatedKeyException;
+import com.arcadedb.exception.NeedRetryException;
+import com.arcadedb.exception.RecordNotFoundException;
+import com.arcadedb.exception.SchemaException;
 import com.arcadedb.graph.MutableVertex;
 import com.arcadedb.graph.Vertex;
 import com.arcadedb.index.IndexCursor;
@@ -10,8 +14,15 @@ import com.arcadedb.schema.Property;
 import com.arcadedb.schema.Schema;
 import com.arcadedb.schema.Type;
 import com.arcadedb.schema.VertexType;
+import com.google.gson.stream.JsonWriter;
+import nju.hjh.arcadedb.timeseries.DataPointCursor;
 import nju.hjh.arcadedb.timeseries.NestEngine;
+import nju.hjh.arcadedb.timeseries.NestNode;
+import nju.hjh.arcadedb.timeseries.NestTreeAdvisor;
+import nju.hjh.arcadedb.timeseries.SeriesHandle;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.exception.DataTypeMismatchException;
+import nju.hjh.arcadedb.timeseries.exception.MessageParsingException;
 import nju.hjh.arcadedb.timeseries.exception.TargetNotFoundException;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 import nju.hjh.arcadedb.timeseries.server.bo.Metric;
@@ -19,20 +30,51 @@ import nju.hjh.arcadedb.timeseries.server.bo.TimeseriesQuery;
 import nju.hjh.arcadedb.timeseries.server.bo.TimeseriesQueryResult;
 import nju.hjh.arcadedb.timeseries.server.task.TimeseriesInsertTask;
 import nju.hjh.arcadedb.timeseries.server.task.TimeseriesQueryTask;
+import nju.hjh.arcadedb.timeseries.server.task.TimeseriesStreamQueryTask;
+import nju.hjh.arcadedb.timeseries.server.utils.GsonUtils;
 import nju.hjh.arcadedb.timeseries.server.utils.ResponseUtils;
+import nju.hjh.arcadedb.timeseries.statistics.FixedStatistics;
+import nju.hjh.arcadedb.timeseries.statistics.NumericStatistics;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+import nju.hjh.arcadedb.timeseries.types.DataType;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class NestDatabaseTaskHandler {
     public static final String PROP_OBJECT_ID = "oid";
+    public static final int MAX_INSERT_RETRY = 3;
+    // threads reading objects of one query in parallel
+    public static final int QUERY_PARALLELISM = Math.max(1, Integer.getInteger("nest.query.parallelism", Runtime.getRuntime().availableProcessors()));
+    // min count of objects in one query to read in parallel
+    public static final int PARALLEL_QUERY_THRESHOLD = 64;
+    private static final AtomicInteger queryReaderCount = new AtomicInteger();
+    private static final ExecutorService queryReaderPool = Executors.newFixedThreadPool(QUERY_PARALLELISM, runnable -> {
+        Thread thread = new Thread(runnable, "nest-query-reader-"+queryReaderCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
     /**
      * use between begin and commit
      *
      * @param objectId unique id of object
      * @return vertex asked
      */
-    private static Vertex getOrCreateSingleVertex(Database database, String objectType, String objectId) {
+    private static Vertex getOrCreateSingleVertex(NestEngine engine, String objectType, String objectId) {
+        final String key = objectType + ':' + objectId;
+        Vertex cached = getCachedVertex(engine, key, objectType, objectId);
+        if (cached != null) return cached;
+
+        Database database = engine.getDatabase();
         // check object type
         boolean isNewVertex = !database.getSchema().existsType(objectType);
         VertexType metricVertex = database.getSchema().getOrCreateVertexType(objectType);
@@ -47,13 +89,18 @@ public class NestDatabaseTaskHandler {
         // find existing vertex
         if (!isNewVertex) {
             IndexCursor cursor = database.lookupByKey(objectType, PROP_OBJECT_ID, objectId);
-            if (cursor.hasNext()) return cursor.next().asVertex();
+            if (cursor.hasNext()) {
+                Vertex vertex = cursor.next().asVertex();
+                engine.cacheObject(key, vertex.getIdentity());
+                return vertex;
+            }
         }
 
         // create new vertex
         MutableVertex newVertex = database.newVertex(objectType);
         newVertex.set(PROP_OBJECT_ID, objectId);
         newVertex.save();
+        engine.cacheObject(key, newVertex.getIdentity());
         return newVertex;
     }
 
@@ -63,85 +110,441 @@ public class NestDatabaseTaskHandler {
      * @param objectId unique id of object
      * @return vertex asked
      */
-    private static Vertex getSingleVertex(Database database, String objectType, String objectId) throws TimeseriesException {
+    private static Vertex getSingleVertex(NestEngine engine, String objectType, String objectId) throws TimeseriesException {
+        final String key = objectType + ':' + objectId;
+        Vertex cached = getCachedVertex(engine, key, objectType, objectId);
+        if (cached != null) return cached;
+
+        Database database = engine.getDatabase();
         if (!database.getSchema().existsType(objectType))
             // no object exists in database
             throw new TargetNotFoundException("object under given id '"+objectId+"' not found");
 
         IndexCursor cursor = database.lookupByKey(objectType, PROP_OBJECT_ID, objectId);
-        if (cursor.hasNext()) return cursor.next().asVertex();
+        if (cursor.hasNext()) {
+            Vertex vertex = cursor.next().asVertex();
+            engine.cacheObject(key, vertex.getIdentity());
+            return vertex;
+        }
 
         throw new TargetNotFoundException("object under given id '"+objectId+"' not found");
     }
 
+    // vertex of object by RID cached in engine, null if not cached or the record under cached RID is no longer the object
+    private static Vertex getCachedVertex(NestEngine engine, String key, String objectType, String objectId) {
+        RID rid = engine.getCachedObject(key);
+        if (rid == null) return null;
+        try {
+            Vertex vertex = engine.getDatabase().lookupByRID(rid, true).asVertex();
+            if (vertex.getTypeName().equals(objectType) && objectId.equals(vertex.getString(PROP_OBJECT_ID))) return vertex;
+        } catch (RecordNotFoundException ignored) {}
+        engine.evictObject(key);
+        return null;
+    }
+
+    /**
+     * create stats tree of new metric, using tree options given in metric or advised from its data points
+     */
+    private static void createStatsTree(NestEngine engine, MutableVertex object, Metric metric) throws TimeseriesException {
+        DataType dataType = metric.getDataPointList() != null ? metric.getDataType() : DataType.inferDatatype(metric.getDataPoints().values().iterator().next());
+        int degree = NestNode.DEFAULT_TREE_DEGREE, dataBlockSize = NestNode.DEFAULT_DATA_BLOCK_SIZE;
+        if (metric.getDegree() == null || metric.getDataBlockSize() == null) {
+            List<DataPoint> samples = metric.getDataPointList();
+            if (samples == null) {
+                samples = new ArrayList<>();
+                for (Map.Entry<Long, Object> datapoint : metric.getDataPoints().entrySet())
+                    samples.add(dataType.convertValue2DataPoint(datapoint.getKey(), datapoint.getValue()));
+            }
+            NestTreeAdvisor advisor = new NestTreeAdvisor(dataType, samples);
+            degree = advisor.getDegree();
+            dataBlockSize = advisor.getDataBlockSize();
+        }
+        if (metric.getDegree() != null) degree = metric.getDegree();
+        if (metric.getDataBlockSize() != null) dataBlockSize = metric.getDataBlockSize();
+        engine.createIfAbsentStatsTree(object, metric.getMetricName(), dataType, degree, dataBlockSize);
+    }
+
+    // use between begin and commit
+    private static void applyInsertTask(NestEngine engine, TimeseriesInsertTask task) throws TimeseriesException {
+        for (Metric metric : task.getMetrics()) {
+            MutableVertex vtxObject = getOrCreateSingleVertex(engine, metric.getObjectType(), metric.getObjectId()).modify();
+            if (metric.pointCount() == 0) continue;
+            if (!engine.existsStatsTree(vtxObject, metric.getMetricName()))
+                createStatsTree(engine, vtxObject, metric);
+            SeriesHandle series = engine.getSeries(vtxObject, metric.getMetricName());
+            if (metric.getDataPointList() != null)
+                engine.insertBatch(series, metric.getDataPointList(), metric.getStrategy());
+            else
+                engine.insertBatch(series, metric.getDataPoints(), metric.getStrategy());
+        }
+    }
+
+    /**
+     * apply insert tasks in one transaction, so they share a single commit.
+     * if the group fails, tasks are applied again one per transaction to isolate failed ones
+     * @return results in the same order as tasks
+     */
+    public static List<Map<String, Object>> handleTimeseriesInsertTasks(NestEngine engine, List<TimeseriesInsertTask> tasks){
+        if (tasks.size() > 1) {
+            engine.begin();
+            try {
+                for (TimeseriesInsertTask task : tasks)
+                    applyInsertTask(engine, task);
+                engine.commit();
+                Map<String, Object> result = new HashMap<>();
+                result.put("status", "ok");
+                return Collections.nCopies(tasks.size(), result);
+            } catch (Exception e) {
+                engine.rollback();
+            }
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (TimeseriesInsertTask task : tasks)
+            results.add(handleTimeseriesInsertTask(engine, task));
+        return results;
+    }
+
     public static Map<String, Object> handleTimeseriesInsertTask(NestEngine engine, TimeseriesInsertTask task){
-        engine.begin();
-        try{
-            for (Metric metric : task.getMetrics()) {
-                MutableVertex vtxObject = getOrCreateSingleVertex(engine.getDatabase(), metric.getObjectType(), metric.getObjectId()).modify();
-                for (Map.Entry<Long, Object> datapoint: metric.getDataPoints().entrySet()){
-                    engine.insertDataPoint(vtxObject, metric.getMetricName(), datapoint.getKey(), datapoint.getValue(), metric.getStrategy());
+        for (int retry = 0; ; retry++) {
+            engine.begin();
+            try {
+                applyInsertTask(engine, task);
+                engine.commit();
+                Map<String, Object> result = new HashMap<>();
+                result.put("status", "ok");
+                return result;
+            } catch (NeedRetryException e) {
+                // conflicted with transaction of another worker, e.g. on trees of one object created concurrently
+                engine.rollback();
+                if (retry >= MAX_INSERT_RETRY) return ResponseUtils.getExceptionResponse(e);
+            } catch (DuplicatedKeyException | SchemaException e) {
+                // object or its type created concurrently by another worker, found by lookup on retry
+                engine.rollback();
+                if (retry >= MAX_INSERT_RETRY) return ResponseUtils.getExceptionResponse(e);
+            } catch (Exception e) {
+                engine.rollback();
+                return ResponseUtils.getExceptionResponse(e);
+            }
+        }
+    }
+
+    // find vertices targeted by query, use between begin and commit
+    private static List<Vertex> getQueryVertices(NestEngine engine, TimeseriesQuery query) throws TimeseriesException {
+        List<Vertex> vertices = new ArrayList<>();
+        if (query.getObjectId() != null){
+            vertices.add(getSingleVertex(engine, query.getObjectType(), query.getObjectId()));
+        }else if (query.getRidBucket() != null){
+            vertices.add(engine.getDatabase().lookupByRID(new RID(engine.getDatabase(), query.ridBucket, query.ridOffset), true).asVertex());
+        }else{
+            ResultSet queryRes = engine.getDatabase().query("SQL", query.getSql());
+            while (queryRes.hasNext()){
+                queryRes.next().getVertex().ifPresent(vertices::add);
+            }
+        }
+        return vertices;
+    }
+
+    public static Map<String, Object> handleTimeseriesQueryTask(NestEngine engine, TimeseriesQueryTask task){
+
+        engine.beginReadOnly();
+        try {
+            Map<String, Object> result = new HashMap<>();
+            List<Object> batchQueryResults = new ArrayList<>();
+            for (TimeseriesQuery query: task.getQueries()){
+                try{
+                    List<Vertex> vertices = getQueryVertices(engine, query);
+                    if (query.multiple){
+                        batchQueryResults.add(getMultipleAggregateResult(engine, vertices, query));
+                        continue;
+                    }
+                    batchQueryResults.add(readVertices(engine, vertices, (readEngine, vertex) -> getVertexQueryResult(readEngine, vertex, query)));
+                } catch (Exception e){
+                    batchQueryResults.add(ResponseUtils.getExceptionDetail(e));
                 }
             }
             engine.commit();
-            Map<String, Object> result = new HashMap<>();
             result.put("status", "ok");
+            result.put("result", batchQueryResults);
             return result;
-        } catch (Exception e){
+        }catch (Exception e){
             engine.rollback();
             return ResponseUtils.getExceptionResponse(e);
         }
     }
 
-    public static Map<String, Object> handleTimeseriesQueryTask(NestEngine engine, TimeseriesQueryTask task){
+    private static TimeseriesQueryResult getVertexQueryResult(NestEngine engine, Vertex vertex, TimeseriesQuery query){
+        TimeseriesQueryResult vertexResult = new TimeseriesQueryResult();
+        vertexResult.id = vertex.getType().getName()+":"+vertex.getString(PROP_OBJECT_ID);
+        vertexResult.rid = vertex.getIdentity().getBucketId()+":"+vertex.getIdentity().getPosition();
+        for (String metric: query.getQueryFields()){
+            try{
+                if (query.getWindow() != null || query.getAggregate() != null){
+                    vertexResult.timeseries.put(metric, getAggregateResult(engine, vertex, metric, query));
+                    continue;
+                }
+                // cursor returns data points in timestamp order
+                DataPointCursor cursor = engine.periodCursor(vertex, metric, query.getStart(), query.getEnd(), query.getLimit());
+                Map<Long, Object> pointMap = new LinkedHashMap<>();
+                DataPoint point;
+                while ((point = cursor.next()) != null) pointMap.put(point.timestamp, point.getValue());
+                vertexResult.timeseries.put(metric, pointMap);
+            }catch (Exception e){
+                vertexResult.timeseries.put(metric, ResponseUtils.getExceptionDetail(e));
+            }
+        }
+        return vertexResult;
+    }
+
+    // read of single object, run in thread of reader pool if objects are read in parallel
+    private interface VertexReader<T> {
+        T read(NestEngine engine, Vertex vertex) throws Exception;
+    }
+
+    /**
+     * read each object and return results in order of objects.
+     * many objects are split into chunks read in parallel by reader pool,
+     * each chunk in its own read-only transaction with an engine not caching trees.
+     */
+    private static <T> List<T> readVertices(NestEngine engine, List<Vertex> vertices, VertexReader<T> reader) throws Exception {
+        List<T> results = new ArrayList<>(vertices.size());
+        if (QUERY_PARALLELISM <= 1 || vertices.size() < PARALLEL_QUERY_THRESHOLD){
+            for (Vertex vertex: vertices) results.add(reader.read(engine, vertex));
+            return results;
+        }
 
-        engine.begin();
+        Database database = engine.getDatabase();
+        int chunkSize = Math.max(PARALLEL_QUERY_THRESHOLD / 2, (vertices.size() + QUERY_PARALLELISM * 4 - 1) / (QUERY_PARALLELISM * 4));
+        List<Future<List<T>>> chunkFutures = new ArrayList<>();
+        for (int from=0; from<vertices.size(); from+=chunkSize){
+            List<RID> chunk = new ArrayList<>();
+            for (Vertex vertex: vertices.subList(from, Math.min(from+chunkSize, vertices.size()))) chunk.add(vertex.getIdentity());
+            chunkFutures.add(queryReaderPool.submit(() -> {
+                NestEngine readEngine = new NestEngine(database);
+                readEngine.setMaxCacheBytes(0);
+                readEngine.beginReadOnly();
+                try {
+                    List<T> chunkResults = new ArrayList<>(chunk.size());
+                    for (RID rid: chunk) chunkResults.add(reader.read(readEngine, database.lookupByRID(rid, true).asVertex()));
+                    return chunkResults;
+                } finally {
+                    readEngine.rollback();
+                }
+            }));
+        }
         try {
-            Map<String, Object> result = new HashMap<>();
-            List<Object> batchQueryResults = new ArrayList<>();
+            for (Future<List<T>> chunkFuture: chunkFutures) results.addAll(chunkFuture.get());
+        } catch (ExecutionException e){
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        } finally {
+            for (Future<List<T>> chunkFuture: chunkFutures) chunkFuture.cancel(true);
+        }
+        return results;
+    }
+
+    /**
+     * write query result into task's output stream in the same format as handleTimeseriesQueryTask,
+     * data points are written as read from leaves without being collected.
+     * @return status of writing, result is already written into output stream
+     */
+    public static Map<String, Object> handleTimeseriesStreamQueryTask(NestEngine engine, TimeseriesStreamQueryTask task){
+        Map<String, Object> result = new HashMap<>();
+        engine.beginReadOnly();
+        try {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(task.getOutputStream(), StandardCharsets.UTF_8)));
+            writer.beginObject();
+            writer.name("result").beginArray();
             for (TimeseriesQuery query: task.getQueries()){
-                List<Vertex> vertices = new ArrayList<>();
-                List<Object> singleQueryResult = new ArrayList<>();
+                List<Vertex> vertices;
                 try{
-                    if (query.getObjectId() != null){
-                        vertices.add(getSingleVertex(engine.getDatabase(), query.getObjectType(), query.getObjectId()));
-                    }else if (query.getRidBucket() != null){
-                        vertices.add(engine.getDatabase().lookupByRID(new RID(engine.getDatabase(), query.ridBucket, query.ridOffset), true).asVertex());
-                    }else{
-                        ResultSet queryRes = engine.getDatabase().query("SQL", query.getSql());
-                        while (queryRes.hasNext()){
-                            queryRes.next().getVertex().ifPresent(vertices::add);
-                        }
+                    vertices = getQueryVertices(engine, query);
+                }catch (Exception e){
+                    writeExceptionDetail(writer, e);
+                    continue;
+                }
+                if (query.multiple){
+                    Map<String, Object> multipleResult;
+                    try{
+                        multipleResult = getMultipleAggregateResult(engine, vertices, query);
+                    }catch (Exception e){
+                        writeExceptionDetail(writer, e);
+                        continue;
                     }
-
-                    for (Vertex vertex: vertices){
-                        TimeseriesQueryResult vertexResult = new TimeseriesQueryResult();
-                        vertexResult.id = vertex.getType().getName()+":"+vertex.getString(PROP_OBJECT_ID);
-                        vertexResult.rid = vertex.getIdentity().getBucketId()+":"+vertex.getIdentity().getPosition();
-                        for (String metric: query.getQueryFields()){
+                    writer.jsonValue(GsonUtils.toJson(multipleResult));
+                    continue;
+                }
+                writer.beginArray();
+                for (Vertex vertex: vertices){
+                    writer.beginObject();
+                    writer.name("id").value(vertex.getType().getName()+":"+vertex.getString(PROP_OBJECT_ID));
+                    writer.name("rid").value(vertex.getIdentity().getBucketId()+":"+vertex.getIdentity().getPosition());
+                    writer.name("timeseries").beginObject();
+                    for (String metric: query.getQueryFields()){
+                        writer.name(metric);
+                        if (query.getWindow() != null || query.getAggregate() != null){
                             try{
-                                List<DataPoint> points = engine.periodQuery(vertex, metric, query.getStart(), query.getEnd(), query.getLimit()).getList();
-                                Map<Long, Object> pointMap = new TreeMap<>();
-                                for (DataPoint point : points) pointMap.put(point.timestamp, point.getValue());
-                                vertexResult.timeseries.put(metric, pointMap);
+                                writer.jsonValue(GsonUtils.toJson(getAggregateResult(engine, vertex, metric, query)));
                             }catch (Exception e){
-                                vertexResult.timeseries.put(metric, ResponseUtils.getExceptionDetail(e));
+                                writeExceptionDetail(writer, e);
+                            }
+                            continue;
+                        }
+                        DataPointCursor cursor;
+                        try{
+                            cursor = engine.periodCursor(vertex, metric, query.getStart(), query.getEnd(), query.getLimit());
+                        }catch (Exception e){
+                            writeExceptionDetail(writer, e);
+                            continue;
+                        }
+                        writer.beginObject();
+                        try {
+                            DataPoint point;
+                            while ((point = cursor.next()) != null){
+                                writer.name(Long.toString(point.timestamp));
+                                Object value = point.getValue();
+                                if (value instanceof Number number) writer.value(number);
+                                else writer.value(String.valueOf(value));
                             }
+                        }catch (TimeseriesException | RuntimeException e){
+                            // points already written, report error within the map
+                            writer.name("error").value(e.getClass().getSimpleName());
+                            writer.name("message").value(e.getMessage());
                         }
-                        singleQueryResult.add(vertexResult);
+                        writer.endObject();
                     }
-                    batchQueryResults.add(singleQueryResult);
-                } catch (Exception e){
-                    batchQueryResults.add(ResponseUtils.getExceptionDetail(e));
+                    writer.endObject();
+                    writer.endObject();
                 }
+                writer.endArray();
             }
+            writer.endArray();
+            writer.name("status").value("ok");
+            writer.endObject();
+            writer.flush();
             engine.commit();
             result.put("status", "ok");
-            result.put("result", batchQueryResults);
             return result;
         }catch (Exception e){
             engine.rollback();
             return ResponseUtils.getExceptionResponse(e);
         }
     }
+
+    /**
+     * aggregate result of metric of single object, computed from statistics of tree.
+     * if window is given, result of non-empty windows keyed by window start time,
+     * with statistics of window if no aggregate is given
+     */
+    private static Object getAggregateResult(NestEngine engine, Vertex vertex, String metric, TimeseriesQuery query) throws TimeseriesException {
+        if (query.getWindow() == null)
+            return getAggregateValue(engine, query.getAggregate(), engine.aggregativeQuery(vertex, metric, query.getStart(), query.getEnd()), vertex, vertex, metric);
+
+        Statistics[] windows = engine.aggregateByWindow(vertex, metric, query.getStart(), query.getEnd(), query.getWindow());
+        Map<Long, Object> windowMap = new LinkedHashMap<>();
+        for (int i=0; i<windows.length; i++){
+            if (windows[i].count == 0) continue;
+            windowMap.put(query.getStart() + i * query.getWindow(), query.getAggregate() == null ?
+                    ResponseUtils.getStatisticsDetail(windows[i]) : getAggregateValue(engine, query.getAggregate(), windows[i], vertex, vertex, metric));
+        }
+        return windowMap;
+    }
+
+    // aggregate each metric over all objects having it
+    private static Map<String, Object> getMultipleAggregateResult(NestEngine engine, List<Vertex> vertices, TimeseriesQuery query) throws Exception {
+        List<String> metrics = query.getQueryFields();
+        // statistics of each metric of each object, null if object has no such metric, or exception thrown
+        List<Object[]> vertexStats = readVertices(engine, vertices, (readEngine, vertex) -> {
+            Object[] stats = new Object[metrics.size()];
+            for (int i=0; i<metrics.size(); i++){
+                try{
+                    if (readEngine.existsStatsTree(vertex, metrics.get(i)))
+                        stats[i] = readEngine.aggregativeQuery(vertex, metrics.get(i), query.getStart(), query.getEnd());
+                }catch (Exception e){
+                    stats[i] = e;
+                }
+            }
+            return stats;
+        });
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        Map<String, Object> timeseries = new LinkedHashMap<>();
+        result.put("objects", vertices.size());
+        result.put("timeseries", timeseries);
+        for (int i=0; i<metrics.size(); i++){
+            String metric = metrics.get(i);
+            try{
+                Statistics merged = null;
+                Vertex firstVertex = null, lastVertex = null;
+                for (int j=0; j<vertices.size(); j++){
+                    Vertex vertex = vertices.get(j);
+                    Object statsOrException = vertexStats.get(j)[i];
+                    if (statsOrException instanceof Exception e) throw e;
+                    Statistics stats = (Statistics) statsOrException;
+                    if (stats == null || stats.count == 0) continue;
+                    if (merged == null){
+                        merged = stats.clone();
+                        firstVertex = lastVertex = vertex;
+                        continue;
+                    }
+                    if (stats.firstTime < merged.firstTime) firstVertex = vertex;
+                    if (stats.lastTime > merged.lastTime) lastVertex = vertex;
+                    merged.merge(stats);
+                }
+                timeseries.put(metric, getAggregateValue(engine, query.getAggregate(), merged, firstVertex, lastVertex, metric));
+            }catch (Exception e){
+                timeseries.put(metric, ResponseUtils.getExceptionDetail(e));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param stats statistics to aggregate, null if no data
+     * @param firstVertex object holding first data point, to look up its value if not kept in statistics
+     * @param lastVertex object holding last data point
+     */
+    private static Object getAggregateValue(NestEngine engine, String aggregate, Statistics stats, Vertex firstVertex, Vertex lastVertex, String metric) throws TimeseriesException {
+        if (aggregate.equals(TimeseriesQuery.AGGREGATE_COUNT)) return stats == null ? 0 : stats.count;
+        if (stats == null || stats.count == 0) return null;
+        switch (aggregate){
+            case TimeseriesQuery.AGGREGATE_FIRST -> {
+                Object value = stats instanceof FixedStatistics fixedStats ? fixedStats.getFirstValue() : getValueAt(engine, firstVertex, metric, stats.firstTime);
+                return getDataPointDetail(stats.firstTime, value);
+            }
+            case TimeseriesQuery.AGGREGATE_LAST -> {
+                Object value = stats instanceof FixedStatistics fixedStats ? fixedStats.getLastValue() : getValueAt(engine, lastVertex, metric, stats.lastTime);
+                return getDataPointDetail(stats.lastTime, value);
+            }
+        }
+        if (!(stats instanceof NumericStatistics numStats))
+            throw new DataTypeMismatchException("metric '"+metric+"' is not numeric");
+        return switch (aggregate){
+            case TimeseriesQuery.AGGREGATE_SUM -> numStats.getSum();
+            case TimeseriesQuery.AGGREGATE_AVERAGE -> numStats.getSum().doubleValue() / numStats.count;
+            case TimeseriesQuery.AGGREGATE_MAX -> numStats.getMaxValue();
+            case TimeseriesQuery.AGGREGATE_MIN -> numStats.getMinValue();
+            default -> throw new MessageParsingException("unsupported aggregate '"+aggregate+"'");
+        };
+    }
+
+    private static Object getValueAt(NestEngine engine, Vertex vertex, String metric, long timestamp) throws TimeseriesException {
+        DataPoint point = engine.periodCursor(vertex, metric, timestamp, timestamp, 1).next();
+        if (point == null) throw new TimeseriesException("metric '"+metric+"' contains timestamp "+timestamp+" but data point not found");
+        return point.getValue();
+    }
+
+    private static Map<String, Object> getDataPointDetail(long timestamp, Object value){
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("timestamp", timestamp);
+        result.put("value", value);
+        return result;
+    }
+
+    private static void writeExceptionDetail(JsonWriter writer, Exception e) throws IOException {
+        writer.beginObject();
+        writer.name("error").value(e.getClass().getSimpleName());
+        writer.name("message").value(e.getMessage());
+        writer.endObject();
+    }
 }
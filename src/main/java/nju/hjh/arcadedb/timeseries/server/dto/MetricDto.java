@@ -22,4 +22,11 @@ public class MetricDto {
 
     @SerializedName("points")
     private Map<String, Object> dataPoints;
+
+    // tree options used when metric is created, advised from data points if absent
+    @SerializedName("degree")
+    private Integer degree;
+
+    @SerializedName("blockSize")
+    private Integer dataBlockSize;
 }
@@ -12,6 +12,8 @@ import java.util.List;
 @ToString
 public class TimeseriesQueryDto {
     public static final int MAX_LIMIT = 1000;
+    // streamed query holds only one leaf of data points in memory, so it is not limited by default
+    public static final int MAX_STREAM_LIMIT = Integer.MAX_VALUE;
     @SerializedName("id")
     private String objectId;
 
@@ -30,6 +32,18 @@ public class TimeseriesQueryDto {
     @SerializedName("limit")
     private Integer limit;
 
+    // aggregate data points into windows of given size(ms) instead of returning them, end is required
+    @SerializedName("window")
+    private Long window;
+
+    // one of count/sum/avg/max/min/first/last, computed from statistics of tree instead of returning data points
+    @SerializedName("aggregate")
+    private String aggregate;
+
+    // aggregate over all queried objects instead of each object
+    @SerializedName("multiple")
+    private Boolean multiple;
+
     @SerializedName("fields")
     private List<String> queryFields;
 }
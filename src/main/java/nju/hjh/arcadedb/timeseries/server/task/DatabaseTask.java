@@ -1,4 +1,11 @@
 package nju.hjh.arcadedb.timeseries.server.task;
 
 public interface DatabaseTask {
+    int PRIORITY_HIGH = 0;
+    int PRIORITY_NORMAL = 1;
+
+    // queued tasks of smaller priority are handled first, tasks writing the same series must share one priority to keep their order
+    default int getPriority(){
+        return PRIORITY_NORMAL;
+    }
 }
@@ -5,6 +5,7 @@ import nju.hjh.arcadedb.timeseries.server.bo.Metric;
 
 import java.util.List;
 
+// all insert tasks have normal priority, so inserts into the same series are handled in submit order
 @Getter
 public class TimeseriesInsertTask implements DatabaseTask{
     List<Metric> metrics;
@@ -12,4 +12,9 @@ public class TimeseriesQueryTask implements DatabaseTask{
     public TimeseriesQueryTask(List<TimeseriesQuery> queries) {
         this.queries = queries;
     }
+
+    @Override
+    public int getPriority() {
+        return PRIORITY_HIGH;
+    }
 }
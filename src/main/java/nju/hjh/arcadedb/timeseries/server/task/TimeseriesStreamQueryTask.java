@@ -0,0 +1,21 @@
+package nju.hjh.arcadedb.timeseries.server.task;
+
+import lombok.Getter;
+import nju.hjh.arcadedb.timeseries.server.bo.TimeseriesQuery;
+
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * query task whose result is written into output stream as data points are read
+ */
+@Getter
+public class TimeseriesStreamQueryTask implements DatabaseTask{
+    List<TimeseriesQuery> queries;
+    OutputStream outputStream;
+
+    public TimeseriesStreamQueryTask(List<TimeseriesQuery> queries, OutputStream outputStream) {
+        this.queries = queries;
+        this.outputStream = outputStream;
+    }
+}
@@ -0,0 +1,104 @@
+package nju.hjh.arcadedb.timeseries.server.utils;
+
+import com.arcadedb.database.Binary;
+import nju.hjh.arcadedb.timeseries.UpdateStrategy;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.DoubleDataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.LongDataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.StringDataPoint;
+import nju.hjh.arcadedb.timeseries.exception.MessageParsingException;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.server.bo.Metric;
+import nju.hjh.arcadedb.timeseries.types.DoubleDataType;
+import nju.hjh.arcadedb.timeseries.types.LongDataType;
+import nju.hjh.arcadedb.timeseries.types.StringDataType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * decode binary ingest body into metrics, data points are decoded directly without intermediate map.
+ * body is a sequence of frames, each holding data points of one metric of one object:
+ * <pre>
+ * frame     := length(uvarint, bytes after it) id(string, {type}:{id}) metric(string) conflict(string, empty for ignore)
+ *              valueType(byte) count(uvarint) firstTimestamp(varint) delta(uvarint, positive) * (count-1) value * count
+ * value     := varint for VALUE_LONG, 8 bytes IEEE 754 bits for VALUE_DOUBLE, string for VALUE_STRING
+ * string    := length(uvarint) utf-8 bytes
+ * </pre>
+ * varint is zigzag encoded uvarint, uvarint is 7 bits per byte with high bit set on all but last byte, as Binary.putUnsignedNumber.
+ */
+public class BinaryIngestUtils {
+    public static final byte VALUE_LONG = 1;
+    public static final byte VALUE_DOUBLE = 2;
+    public static final byte VALUE_STRING = 3;
+
+    public static List<Metric> decodeMetrics(byte[] body) throws TimeseriesException {
+        List<Metric> metrics = new ArrayList<>();
+        Binary binary = new Binary(body);
+        while (binary.position() < body.length){
+            int frameStart = binary.position();
+            try {
+                long frameLength = binary.getUnsignedNumber();
+                long frameEnd = binary.position() + frameLength;
+                if (frameEnd > body.length)
+                    throw new MessageParsingException("frame at "+frameStart+" exceeds body");
+                metrics.add(decodeFrame(binary, frameEnd));
+                if (binary.position() != frameEnd)
+                    throw new MessageParsingException("frame at "+frameStart+" has length "+frameLength+" but "+(binary.position() - frameStart)+" bytes decoded");
+            } catch (RuntimeException e){
+                throw new MessageParsingException("frame at "+frameStart+" is truncated or malformed");
+            }
+        }
+        return metrics;
+    }
+
+    private static Metric decodeFrame(Binary binary, long frameEnd) throws TimeseriesException {
+        Metric metric = new Metric();
+        String id = binary.getString();
+        int sepIndex = id.indexOf(':');
+        if (sepIndex == -1) throw new MessageParsingException("id must be in form of {type}:{id}");
+        metric.objectType = id.substring(0, sepIndex);
+        metric.objectId = id.substring(sepIndex + 1);
+        metric.metricName = binary.getString();
+        if (StringUtils.isEmpty(metric.metricName)) throw new MessageParsingException("metric of '"+id+"' is empty");
+        String conflict = binary.getString();
+        metric.strategy = StringUtils.isEmpty(conflict) ? UpdateStrategy.IGNORE : UpdateStrategy.parse(conflict);
+
+        byte valueType = binary.getByte();
+        long count = binary.getUnsignedNumber();
+        // each data point takes at least 1 byte of timestamp and its smallest value, checked before arrays are allocated
+        int minPointBytes = 1 + (valueType == VALUE_DOUBLE ? 8 : 1);
+        if (count < 0 || count > (frameEnd - binary.position()) / minPointBytes)
+            throw new MessageParsingException("count "+count+" of metric '"+metric.metricName+"' exceeds frame");
+        long[] timestamps = new long[(int) count];
+        for (int i=0; i<count; i++){
+            if (i == 0) {
+                timestamps[i] = binary.getNumber();
+            } else {
+                long delta = binary.getUnsignedNumber();
+                if (delta <= 0) throw new MessageParsingException("timestamps of metric '"+metric.metricName+"' should be strictly ascending");
+                timestamps[i] = timestamps[i-1] + delta;
+                if (timestamps[i] < timestamps[i-1]) throw new MessageParsingException("timestamp of metric '"+metric.metricName+"' overflows");
+            }
+        }
+
+        List<DataPoint> dataPoints = new ArrayList<>((int) count);
+        switch (valueType) {
+            case VALUE_LONG -> {
+                metric.dataType = LongDataType.getInstance();
+                for (long timestamp : timestamps) dataPoints.add(new LongDataPoint(timestamp, binary.getNumber()));
+            }
+            case VALUE_DOUBLE -> {
+                metric.dataType = DoubleDataType.getInstance();
+                for (long timestamp : timestamps) dataPoints.add(new DoubleDataPoint(timestamp, Double.longBitsToDouble(binary.getLong())));
+            }
+            case VALUE_STRING -> {
+                metric.dataType = new StringDataType();
+                for (long timestamp : timestamps) dataPoints.add(metric.dataType.convertValue2DataPoint(timestamp, binary.getString()));
+            }
+            default -> throw new MessageParsingException("unknown value type "+valueType+" of metric '"+metric.metricName+"'");
+        }
+        metric.dataPointList = dataPoints;
+        return metric;
+    }
+}
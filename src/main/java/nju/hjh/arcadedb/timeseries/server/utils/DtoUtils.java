@@ -1,6 +1,7 @@
 package nju.hjh.arcadedb.timeseries.server.utils;
 
 import com.arcadedb.database.RID;
+import nju.hjh.arcadedb.timeseries.NestNode;
 import nju.hjh.arcadedb.timeseries.UpdateStrategy;
 import nju.hjh.arcadedb.timeseries.exception.MessageParsingException;
 import nju.hjh.arcadedb.timeseries.exception.MissingFieldException;
@@ -18,11 +19,22 @@ import java.util.stream.Collectors;
 public class DtoUtils {
     public static boolean validateMetricDto(final MetricDto metricDto) throws TimeseriesException{
         if (MapUtils.isEmpty(metricDto.getDataPoints())) return false;
+        validateMetricHeader(metricDto);
+        return true;
+    }
+
+    /**
+     * validate fields of metric dto other than data points
+     */
+    public static void validateMetricHeader(final MetricDto metricDto) throws TimeseriesException{
         if (StringUtils.isEmpty(metricDto.getMetricName())) throw new MissingFieldException("metric");
         String id = metricDto.getObjectId();
         if (StringUtils.isEmpty(id)) throw new MissingFieldException("id");
         if (id.indexOf(':') == -1) throw new MessageParsingException("id must be in form of {type}:{id}");
-        return true;
+        if (metricDto.getDegree() != null && (metricDto.getDegree() < NestNode.MIN_TREE_DEGREE || metricDto.getDegree() > NestNode.MAX_TREE_DEGREE))
+            throw new MessageParsingException(String.format("degree should be within [%d, %d]", NestNode.MIN_TREE_DEGREE, NestNode.MAX_TREE_DEGREE));
+        if (metricDto.getDataBlockSize() != null && (metricDto.getDataBlockSize() < NestNode.MIN_DATA_BLOCK_SIZE || metricDto.getDataBlockSize() > NestNode.MAX_DATA_BLOCK_SIZE))
+            throw new MessageParsingException(String.format("blockSize should be within [%d, %d]", NestNode.MIN_DATA_BLOCK_SIZE, NestNode.MAX_DATA_BLOCK_SIZE));
     }
 
     public static Metric convertMetricDto2Bo(final MetricDto dto) throws TimeseriesException {
@@ -33,6 +45,8 @@ public class DtoUtils {
         metric.objectId = id.substring(sepIndex + 1);
         metric.metricName = dto.getMetricName();
         metric.strategy = StringUtils.isEmpty(dto.getConflict())? UpdateStrategy.IGNORE: UpdateStrategy.parse(dto.getConflict());
+        metric.degree = dto.getDegree();
+        metric.dataBlockSize = dto.getDataBlockSize();
         metric.dataPoints = new TreeMap<>();
         if (dto.getDataPoints() != null) {
             dto.getDataPoints().forEach((key, value) -> metric.dataPoints.put(Long.parseLong(key), value));
@@ -41,6 +55,10 @@ public class DtoUtils {
     }
 
     public static boolean validateTimeseriesQueryDto(final TimeseriesQueryDto queryDto) throws TimeseriesException {
+        return validateTimeseriesQueryDto(queryDto, TimeseriesQueryDto.MAX_LIMIT);
+    }
+
+    public static boolean validateTimeseriesQueryDto(final TimeseriesQueryDto queryDto, int maxLimit) throws TimeseriesException {
         if (ListUtils.isEmpty(queryDto.getQueryFields())) return false;
         if (!StringUtils.isEmpty(queryDto.getObjectId())) {
             if (queryDto.getObjectId().indexOf(':') == -1) throw new MessageParsingException("id must be in form of {type}:{id}");
@@ -56,14 +74,34 @@ public class DtoUtils {
         } else if (StringUtils.isEmpty(queryDto.getSql())) {
             throw new MessageParsingException("one of id/rid/sql is required");
         }
-        if (queryDto.getLimit() != null && queryDto.getLimit() > TimeseriesQueryDto.MAX_LIMIT){
-            throw new MessageParsingException("limit is greater than max limit "+TimeseriesQueryDto.MAX_LIMIT);
+        if (queryDto.getLimit() != null && queryDto.getLimit() > maxLimit){
+            throw new MessageParsingException("limit is greater than max limit "+maxLimit);
+        }
+        if (queryDto.getWindow() != null && queryDto.getWindow() <= 0){
+            throw new MessageParsingException("window should be positive");
+        }
+        if (queryDto.getWindow() != null && queryDto.getEnd() == null){
+            throw new MessageParsingException("end is required for window query, as windows are counted up to it");
+        }
+        if (queryDto.getAggregate() != null && !TimeseriesQuery.AGGREGATE_TYPES.contains(queryDto.getAggregate())){
+            throw new MessageParsingException("unsupported aggregate '"+queryDto.getAggregate()+"', should be one of "+TimeseriesQuery.AGGREGATE_TYPES);
+        }
+        if (Boolean.TRUE.equals(queryDto.getMultiple())){
+            if (queryDto.getAggregate() == null) throw new MessageParsingException("aggregate is required for multiple query");
+            if (queryDto.getWindow() != null) throw new MessageParsingException("window is not supported for multiple query");
         }
 
         return true;
     }
 
     public static TimeseriesQuery convertTimeseriesQueryDto2Bo(final TimeseriesQueryDto queryDto) throws TimeseriesException {
+        return convertTimeseriesQueryDto2Bo(queryDto, TimeseriesQueryDto.MAX_LIMIT);
+    }
+
+    /**
+     * @param defaultLimit limit used if not given in query, negative for unlimited
+     */
+    public static TimeseriesQuery convertTimeseriesQueryDto2Bo(final TimeseriesQueryDto queryDto, int defaultLimit) throws TimeseriesException {
         TimeseriesQuery query = new TimeseriesQuery();
         if (!StringUtils.isEmpty(queryDto.getObjectId())){
             int sepIndex = queryDto.getObjectId().indexOf(':');
@@ -78,7 +116,10 @@ public class DtoUtils {
         }
         query.start = queryDto.getStart() == null ? 0 : queryDto.getStart();
         query.end = queryDto.getEnd() == null ? Long.MAX_VALUE : queryDto.getEnd();
-        query.limit = queryDto.getLimit() == null ? TimeseriesQueryDto.MAX_LIMIT : queryDto.getLimit();
+        query.limit = queryDto.getLimit() == null ? defaultLimit : queryDto.getLimit();
+        query.window = queryDto.getWindow();
+        query.aggregate = queryDto.getAggregate();
+        query.multiple = Boolean.TRUE.equals(queryDto.getMultiple());
         query.queryFields = queryDto.getQueryFields();
         return query;
     }
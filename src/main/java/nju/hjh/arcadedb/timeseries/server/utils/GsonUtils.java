@@ -14,4 +14,8 @@ public class GsonUtils {
     public static <T> T fromJson(String jsonString, Type type) {
         return gson.fromJson(jsonString, type);
     }
+
+    public static String toJson(Object object) {
+        return gson.toJson(object);
+    }
 }
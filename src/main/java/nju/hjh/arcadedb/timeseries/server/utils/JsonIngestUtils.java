@@ -0,0 +1,143 @@
+package nju.hjh.arcadedb.timeseries.server.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import nju.hjh.arcadedb.timeseries.exception.MessageParsingException;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.server.bo.Metric;
+import nju.hjh.arcadedb.timeseries.server.dto.MetricDto;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * parse insert body of json metric list incrementally, in same format as MetricDto list.
+ * data points are handed to consumer in chunks of bounded count while body is being read,
+ * a metric with more data points than chunk size is split into metrics of same object and metric name.
+ * fields of a large metric should precede its points, as points are handed over before the metric object ends.
+ */
+public class JsonIngestUtils {
+    public interface ChunkConsumer {
+        // return false to stop parsing
+        boolean accept(List<Metric> chunk) throws Exception;
+    }
+
+    // metrics not yet handed to consumer
+    private static class Chunk {
+        List<Metric> metrics = new ArrayList<>();
+        int points = 0;
+    }
+
+    /**
+     * @return false if parsing is stopped by consumer
+     */
+    public static boolean parseMetrics(Reader body, int chunkPoints, ChunkConsumer consumer) throws Exception {
+        JsonReader reader = new JsonReader(body);
+        Chunk chunk = new Chunk();
+        try {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (!parseMetric(reader, chunk, chunkPoints, consumer)) return false;
+            }
+            reader.endArray();
+        } catch (IllegalStateException e) {
+            throw new MessageParsingException("unexpected token at "+reader.getPath()+": "+e.getMessage());
+        }
+        return chunk.metrics.isEmpty() || consumer.accept(chunk.metrics);
+    }
+
+    private static boolean parseMetric(JsonReader reader, Chunk chunk, int chunkPoints, ChunkConsumer consumer) throws Exception {
+        MetricDto header = new MetricDto();
+        SortedMap<Long, Object> dataPoints = new TreeMap<>();
+        // some data points of this metric are already handed over, fields can no longer change
+        boolean handedOver = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!name.equals("points")) {
+                if (handedOver) throw new MessageParsingException("field '"+name+"' should precede points at "+reader.getPath());
+                switch (name) {
+                    case "id" -> header.setObjectId(nextStringOrNull(reader));
+                    case "metric" -> header.setMetricName(nextStringOrNull(reader));
+                    case "conflict" -> header.setConflict(nextStringOrNull(reader));
+                    case "degree" -> header.setDegree(nextIntOrNull(reader));
+                    case "blockSize" -> header.setDataBlockSize(nextIntOrNull(reader));
+                    default -> reader.skipValue();
+                }
+                continue;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                long timestamp;
+                try {
+                    timestamp = Long.parseLong(key);
+                } catch (NumberFormatException e) {
+                    throw new MessageParsingException("timestamp '"+key+"' is not a number");
+                }
+                dataPoints.put(timestamp, nextValue(reader));
+
+                if (chunk.points + dataPoints.size() >= chunkPoints) {
+                    chunk.metrics.add(toMetric(header, dataPoints));
+                    if (!consumer.accept(chunk.metrics)) return false;
+                    chunk.metrics = new ArrayList<>();
+                    chunk.points = 0;
+                    dataPoints = new TreeMap<>();
+                    handedOver = true;
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+
+        if (!dataPoints.isEmpty()) {
+            chunk.metrics.add(toMetric(header, dataPoints));
+            chunk.points += dataPoints.size();
+        }
+        return true;
+    }
+
+    private static Metric toMetric(MetricDto header, SortedMap<Long, Object> dataPoints) throws TimeseriesException {
+        DtoUtils.validateMetricHeader(header);
+        Metric metric = DtoUtils.convertMetricDto2Bo(header);
+        metric.dataPoints = dataPoints;
+        return metric;
+    }
+
+    // numbers are read as double, same as values of MetricDto parsed by gson
+    private static Object nextValue(JsonReader reader) throws IOException, TimeseriesException {
+        JsonToken token = reader.peek();
+        return switch (token) {
+            case NUMBER -> reader.nextDouble();
+            case STRING -> reader.nextString();
+            case BOOLEAN -> reader.nextBoolean();
+            case NULL -> {
+                reader.nextNull();
+                yield null;
+            }
+            default -> throw new MessageParsingException("unsupported value "+token+" at "+reader.getPath());
+        };
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    private static Integer nextIntOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextInt();
+    }
+}
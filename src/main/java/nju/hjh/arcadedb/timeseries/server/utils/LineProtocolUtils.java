@@ -0,0 +1,356 @@
+package nju.hjh.arcadedb.timeseries.server.utils;
+
+import nju.hjh.arcadedb.timeseries.UpdateStrategy;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.DoubleDataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.LongDataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.StringDataPoint;
+import nju.hjh.arcadedb.timeseries.exception.MessageParsingException;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.server.bo.Metric;
+import nju.hjh.arcadedb.timeseries.types.DoubleDataType;
+import nju.hjh.arcadedb.timeseries.types.LongDataType;
+import nju.hjh.arcadedb.timeseries.types.StringDataType;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * decode insert body in line protocol, each line holds data points of one or more metrics of one object at one timestamp:
+ * <pre>
+ * line   := id({type}:{id}) ' ' field (',' field)* [' ' timestamp]
+ * field  := metric '=' value
+ * value  := integer 'i' for long, number for double, '"' string '"' with '"' and '\' escaped by '\'
+ * </pre>
+ * id and metric contain no space, ',' or '=', line without timestamp is at time the body is decoded,
+ * empty lines and lines starting with '#' are skipped.
+ * body is parsed on bytes without intermediate strings, data points are grouped into one metric per series
+ * in ascending order of timestamp, the later line wins on same timestamp.
+ */
+public class LineProtocolUtils {
+    public static final byte VALUE_LONG = 1;
+    public static final byte VALUE_DOUBLE = 2;
+    public static final byte VALUE_STRING = 3;
+
+    // mantissa and powers of ten within which double is exactly computed by one multiplication or division
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] EXACT_POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    public static List<Metric> decodeMetrics(byte[] body, UpdateStrategy strategy) throws TimeseriesException {
+        return new Parser(body, strategy, System.currentTimeMillis()).parse();
+    }
+
+    // series is identified by bytes of id and metric, probe key is reused for lookup so parsing a line allocates no key
+    private static final class SeriesKey {
+        byte[] bytes;
+        int idStart, idEnd, nameStart, nameEnd;
+        int hash;
+
+        void set(byte[] bytes, int idStart, int idEnd, int nameStart, int nameEnd) {
+            this.bytes = bytes;
+            this.idStart = idStart;
+            this.idEnd = idEnd;
+            this.nameStart = nameStart;
+            this.nameEnd = nameEnd;
+            int h = 1;
+            for (int i=idStart; i<idEnd; i++) h = 31 * h + bytes[i];
+            for (int i=nameStart; i<nameEnd; i++) h = 31 * h + bytes[i];
+            this.hash = 31 * h + (idEnd - idStart);
+        }
+
+        SeriesKey copy() {
+            SeriesKey key = new SeriesKey();
+            int idLength = idEnd - idStart;
+            key.bytes = new byte[idLength + nameEnd - nameStart];
+            System.arraycopy(bytes, idStart, key.bytes, 0, idLength);
+            System.arraycopy(bytes, nameStart, key.bytes, idLength, nameEnd - nameStart);
+            key.idStart = 0;
+            key.idEnd = idLength;
+            key.nameStart = idLength;
+            key.nameEnd = key.bytes.length;
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SeriesKey key) || key.hash != hash) return false;
+            return Arrays.equals(bytes, idStart, idEnd, key.bytes, key.idStart, key.idEnd)
+                    && Arrays.equals(bytes, nameStart, nameEnd, key.bytes, key.nameStart, key.nameEnd);
+        }
+    }
+
+    private static final class Series {
+        final Metric metric;
+        long lastTimestamp;
+        boolean ascending = true;
+
+        Series(Metric metric) {
+            this.metric = metric;
+        }
+
+        void add(DataPoint dataPoint) {
+            if (!metric.dataPointList.isEmpty() && dataPoint.timestamp <= lastTimestamp) ascending = false;
+            lastTimestamp = dataPoint.timestamp;
+            metric.dataPointList.add(dataPoint);
+        }
+
+        // sort data points by timestamp, keep the last one of same timestamp
+        Metric finish() {
+            if (ascending) return metric;
+            List<DataPoint> dataPoints = metric.dataPointList;
+            dataPoints.sort(Comparator.comparingLong(dataPoint -> dataPoint.timestamp));
+            int size = 0;
+            for (DataPoint dataPoint : dataPoints) {
+                if (size > 0 && dataPoints.get(size - 1).timestamp == dataPoint.timestamp) size--;
+                dataPoints.set(size++, dataPoint);
+            }
+            dataPoints.subList(size, dataPoints.size()).clear();
+            return metric;
+        }
+    }
+
+    private static final class Parser {
+        final byte[] body;
+        final UpdateStrategy strategy;
+        final long receiveTime;
+        final LinkedHashMap<SeriesKey, Series> seriesMap = new LinkedHashMap<>();
+        final SeriesKey probe = new SeriesKey();
+        int pos = 0;
+        int lineNumber = 0;
+
+        // fields of current line, reused across lines
+        int fieldCount = 0;
+        int[] nameStarts = new int[8];
+        int[] nameEnds = new int[8];
+        byte[] valueTypes = new byte[8];
+        long[] numberValues = new long[8];
+        String[] stringValues = new String[8];
+
+        Parser(byte[] body, UpdateStrategy strategy, long receiveTime) {
+            this.body = body;
+            this.strategy = strategy;
+            this.receiveTime = receiveTime;
+        }
+
+        List<Metric> parse() throws TimeseriesException {
+            while (pos < body.length) {
+                lineNumber++;
+                byte first = body[pos];
+                if (first == '\n' || first == '\r' || first == '#') {
+                    skipLine();
+                } else {
+                    parseLine();
+                }
+            }
+            List<Metric> metrics = new ArrayList<>(seriesMap.size());
+            for (Series series : seriesMap.values()) metrics.add(series.finish());
+            return metrics;
+        }
+
+        private void skipLine() {
+            while (pos < body.length && body[pos++] != '\n');
+        }
+
+        private boolean isLineEnd(int index) {
+            return index >= body.length || body[index] == '\n' || body[index] == '\r';
+        }
+
+        private void parseLine() throws TimeseriesException {
+            int idStart = pos;
+            while (!isLineEnd(pos) && body[pos] != ' ') pos++;
+            int idEnd = pos;
+            if (isLineEnd(pos)) throw error("missing fields after id");
+            pos++;
+
+            fieldCount = 0;
+            while (true) {
+                parseField();
+                if (isLineEnd(pos)) break;
+                byte separator = body[pos++];
+                if (separator == ' ') break;
+                if (separator != ',') throw error("unexpected '"+(char) separator+"' after value");
+            }
+
+            long timestamp = receiveTime;
+            if (!isLineEnd(pos)) {
+                int start = pos;
+                while (!isLineEnd(pos) && body[pos] != ' ') pos++;
+                timestamp = parseLong(start, pos);
+            }
+            while (pos < body.length && (body[pos] == ' ' || body[pos] == '\r')) pos++;
+            if (pos < body.length && body[pos++] != '\n') throw error("unexpected content after timestamp");
+
+            for (int i=0; i<fieldCount; i++) {
+                Series series = getSeries(idStart, idEnd, nameStarts[i], nameEnds[i], valueTypes[i]);
+                series.add(switch (valueTypes[i]) {
+                    case VALUE_LONG -> new LongDataPoint(timestamp, numberValues[i]);
+                    case VALUE_DOUBLE -> new DoubleDataPoint(timestamp, Double.longBitsToDouble(numberValues[i]));
+                    default -> new StringDataPoint(timestamp, stringValues[i]);
+                });
+                stringValues[i] = null;
+            }
+        }
+
+        private void parseField() throws TimeseriesException {
+            if (fieldCount == nameStarts.length) {
+                int capacity = fieldCount * 2;
+                nameStarts = Arrays.copyOf(nameStarts, capacity);
+                nameEnds = Arrays.copyOf(nameEnds, capacity);
+                valueTypes = Arrays.copyOf(valueTypes, capacity);
+                numberValues = Arrays.copyOf(numberValues, capacity);
+                stringValues = Arrays.copyOf(stringValues, capacity);
+            }
+            int index = fieldCount++;
+
+            nameStarts[index] = pos;
+            while (!isLineEnd(pos) && body[pos] != '=' && body[pos] != ',' && body[pos] != ' ') pos++;
+            nameEnds[index] = pos;
+            if (nameEnds[index] == nameStarts[index]) throw error("empty metric");
+            if (isLineEnd(pos) || body[pos] != '=') throw error("missing '=' after metric");
+            pos++;
+
+            if (pos < body.length && body[pos] == '"') {
+                valueTypes[index] = VALUE_STRING;
+                stringValues[index] = parseString();
+                return;
+            }
+            int start = pos;
+            while (!isLineEnd(pos) && body[pos] != ',' && body[pos] != ' ') pos++;
+            if (pos == start) throw error("empty value");
+            if (body[pos - 1] == 'i') {
+                valueTypes[index] = VALUE_LONG;
+                numberValues[index] = parseLong(start, pos - 1);
+            } else {
+                valueTypes[index] = VALUE_DOUBLE;
+                numberValues[index] = Double.doubleToRawLongBits(parseDouble(start, pos));
+            }
+        }
+
+        private String parseString() throws TimeseriesException {
+            int start = ++pos;
+            boolean escaped = false;
+            while (pos < body.length && body[pos] != '"') {
+                if (body[pos] == '\\') {
+                    escaped = true;
+                    pos++;
+                }
+                pos++;
+            }
+            if (pos >= body.length) throw error("unterminated string");
+            int end = pos++;
+            if (!escaped) return new String(body, start, end - start, StandardCharsets.UTF_8);
+
+            byte[] unescaped = new byte[end - start];
+            int length = 0;
+            for (int i=start; i<end; i++) {
+                if (body[i] == '\\') i++;
+                unescaped[length++] = body[i];
+            }
+            return new String(unescaped, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // parse decimal long in [start, end), accumulated as negative to reach Long.MIN_VALUE
+        private long parseLong(int start, int end) throws TimeseriesException {
+            int i = start;
+            boolean negative = false;
+            if (i < end && (body[i] == '-' || body[i] == '+')) negative = body[i++] == '-';
+            if (i == end) throw error("invalid integer");
+            long result = 0;
+            for (; i<end; i++) {
+                int digit = body[i] - '0';
+                if (digit < 0 || digit > 9) throw error("invalid integer");
+                if (result < (Long.MIN_VALUE + digit) / 10) throw error("integer out of range");
+                result = result * 10 - digit;
+            }
+            if (negative) return result;
+            if (result == Long.MIN_VALUE) throw error("integer out of range");
+            return -result;
+        }
+
+        // parse double in [start, end), exactly computed for short mantissa and small exponent, otherwise by Double.parseDouble
+        private double parseDouble(int start, int end) throws TimeseriesException {
+            int i = start;
+            boolean negative = false;
+            if (i < end && (body[i] == '-' || body[i] == '+')) negative = body[i++] == '-';
+            long mantissa = 0;
+            int exponent = 0;
+            boolean exact = true;
+            boolean hasDigit = false;
+            for (; i<end && body[i] >= '0' && body[i] <= '9'; i++) {
+                hasDigit = true;
+                if (mantissa < MAX_EXACT_MANTISSA) mantissa = mantissa * 10 + (body[i] - '0');
+                else exact = false;
+            }
+            if (i < end && body[i] == '.') {
+                for (i++; i<end && body[i] >= '0' && body[i] <= '9'; i++) {
+                    hasDigit = true;
+                    if (mantissa < MAX_EXACT_MANTISSA) {
+                        mantissa = mantissa * 10 + (body[i] - '0');
+                        exponent--;
+                    } else exact = false;
+                }
+            }
+            if (!hasDigit) throw error("invalid number");
+            if (i < end && (body[i] == 'e' || body[i] == 'E')) {
+                i++;
+                boolean negativeExponent = false;
+                if (i < end && (body[i] == '-' || body[i] == '+')) negativeExponent = body[i++] == '-';
+                if (i == end) throw error("invalid number");
+                int explicit = 0;
+                for (; i<end && body[i] >= '0' && body[i] <= '9'; i++) {
+                    if (explicit < 100000) explicit = explicit * 10 + (body[i] - '0');
+                }
+                exponent += negativeExponent ? -explicit : explicit;
+            }
+            if (i != end) throw error("invalid number");
+
+            if (exact && mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+                double value = exponent >= 0 ? mantissa * EXACT_POWERS_OF_TEN[exponent] : mantissa / EXACT_POWERS_OF_TEN[-exponent];
+                return negative ? -value : value;
+            }
+            return Double.parseDouble(new String(body, start, end - start, StandardCharsets.ISO_8859_1));
+        }
+
+        private Series getSeries(int idStart, int idEnd, int nameStart, int nameEnd, byte valueType) throws TimeseriesException {
+            probe.set(body, idStart, idEnd, nameStart, nameEnd);
+            Series series = seriesMap.get(probe);
+            if (series != null) return series;
+
+            String id = new String(body, idStart, idEnd - idStart, StandardCharsets.UTF_8);
+            int sepIndex = id.indexOf(':');
+            if (sepIndex == -1) throw error("id must be in form of {type}:{id}");
+            Metric metric = new Metric();
+            metric.objectType = id.substring(0, sepIndex);
+            metric.objectId = id.substring(sepIndex + 1);
+            metric.metricName = new String(body, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+            metric.strategy = strategy;
+            // data type of series follows its first value, later values are converted on insert
+            metric.dataType = switch (valueType) {
+                case VALUE_LONG -> LongDataType.getInstance();
+                case VALUE_DOUBLE -> DoubleDataType.getInstance();
+                default -> new StringDataType();
+            };
+            metric.dataPointList = new ArrayList<>();
+            series = new Series(metric);
+            seriesMap.put(probe.copy(), series);
+            return series;
+        }
+
+        private MessageParsingException error(String message) {
+            return new MessageParsingException("line "+lineNumber+": "+message);
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package nju.hjh.arcadedb.timeseries.server.utils;
 
+import nju.hjh.arcadedb.timeseries.statistics.FixedStatistics;
+import nju.hjh.arcadedb.timeseries.statistics.NumericStatistics;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class ResponseUtils {
@@ -11,6 +16,23 @@ public class ResponseUtils {
         return result;
     }
 
+    public static Map<String, Object> getStatisticsDetail(final Statistics statistics) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", statistics.count);
+        result.put("firstTime", statistics.firstTime);
+        result.put("lastTime", statistics.lastTime);
+        if (statistics instanceof FixedStatistics fixedStatistics){
+            result.put("first", fixedStatistics.getFirstValue());
+            result.put("last", fixedStatistics.getLastValue());
+        }
+        if (statistics instanceof NumericStatistics numericStatistics){
+            result.put("sum", numericStatistics.getSum());
+            result.put("max", numericStatistics.getMaxValue());
+            result.put("min", numericStatistics.getMinValue());
+        }
+        return result;
+    }
+
     public static Map<String, Object> getExceptionDetail(final Throwable e) {
         Map<String, Object> result = new HashMap<>();
         result.put("error", e.getClass().getSimpleName());
@@ -2,6 +2,7 @@ package nju.hjh.arcadedb.timeseries.statistics;
 
 import com.arcadedb.database.Binary;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.DoubleDataPointSet;
 import nju.hjh.arcadedb.timeseries.datapoint.DoubleDataPoint;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 import nju.hjh.arcadedb.timeseries.types.DataType;
@@ -84,20 +85,11 @@ public class DoubleStatistics extends NumericStatistics{
         if (oldDP instanceof DoubleDataPoint oldDDP && newDP instanceof DoubleDataPoint newDDP){
             if (oldDP.timestamp != newDP.timestamp)
                 throw new TimeseriesException("timestamp different when updating statistics");
-            if (oldDDP.value == max){
-                if (newDDP.value >= max){
-                    max = newDDP.value;
-                }else{
-                    return false;
-                }
-            }
-            if (oldDDP.value == min){
-                if (newDDP.value <= max){
-                    min = newDDP.value;
-                }else{
-                    return false;
-                }
-            }
+            // extreme value replaced by a less extreme one, statistics should be recomputed
+            if (oldDDP.value == max && newDDP.value < max) return false;
+            if (oldDDP.value == min && newDDP.value > min) return false;
+            max = Math.max(max, newDDP.value);
+            min = Math.min(min, newDDP.value);
             sum += newDDP.value - oldDDP.value;
             if (oldDDP.timestamp == firstTime){
                 firstValue = newDDP.value;
@@ -144,6 +136,31 @@ public class DoubleStatistics extends NumericStatistics{
         }
     }
 
+    /**
+     * insert data points within index range [fromIndex, toIndex) of column
+     */
+    public void insertAll(DoubleDataPointSet column, int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) return;
+
+        count += toIndex - fromIndex;
+        if (column.timestampAt(fromIndex) < firstTime) {
+            firstTime = column.timestampAt(fromIndex);
+            firstValue = column.valueAt(fromIndex);
+        }
+        if (column.timestampAt(toIndex-1) > lastTime) {
+            lastTime = column.timestampAt(toIndex-1);
+            lastValue = column.valueAt(toIndex-1);
+        }
+        for (int i = fromIndex; i < toIndex; i++) {
+            double value = column.valueAt(i);
+            sum += value;
+            if (value > max)
+                max = value;
+            if (value < min)
+                min = value;
+        }
+    }
+
     @Override
     public void merge(Statistics stats) throws TimeseriesException {
         if (stats == null || stats.count == 0)
@@ -2,6 +2,7 @@ package nju.hjh.arcadedb.timeseries.statistics;
 
 import com.arcadedb.database.Binary;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.LongDataPointSet;
 import nju.hjh.arcadedb.timeseries.datapoint.LongDataPoint;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 import nju.hjh.arcadedb.timeseries.types.DataType;
@@ -59,20 +60,11 @@ public class LongStatistics extends NumericStatistics{
         if (oldDP instanceof LongDataPoint oldLDP && newDP instanceof LongDataPoint newLDP){
             if (oldDP.timestamp != newDP.timestamp)
                 throw new TimeseriesException("timestamp different when updating statistics");
-            if (oldLDP.value == max){
-                if (newLDP.value >= max){
-                    max = newLDP.value;
-                }else{
-                    return false;
-                }
-            }
-            if (oldLDP.value == min){
-                if (newLDP.value <= max){
-                    min = newLDP.value;
-                }else{
-                    return false;
-                }
-            }
+            // extreme value replaced by a less extreme one, statistics should be recomputed
+            if (oldLDP.value == max && newLDP.value < max) return false;
+            if (oldLDP.value == min && newLDP.value > min) return false;
+            max = Math.max(max, newLDP.value);
+            min = Math.min(min, newLDP.value);
             sum += newLDP.value - oldLDP.value;
             if (oldLDP.timestamp == firstTime){
                 firstValue = newLDP.value;
@@ -119,6 +111,31 @@ public class LongStatistics extends NumericStatistics{
         }
     }
 
+    /**
+     * insert data points within index range [fromIndex, toIndex) of column
+     */
+    public void insertAll(LongDataPointSet column, int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex) return;
+
+        count += toIndex - fromIndex;
+        if (column.timestampAt(fromIndex) < firstTime) {
+            firstTime = column.timestampAt(fromIndex);
+            firstValue = column.valueAt(fromIndex);
+        }
+        if (column.timestampAt(toIndex-1) > lastTime) {
+            lastTime = column.timestampAt(toIndex-1);
+            lastValue = column.valueAt(toIndex-1);
+        }
+        for (int i = fromIndex; i < toIndex; i++) {
+            long value = column.valueAt(i);
+            sum += value;
+            if (value > max)
+                max = value;
+            if (value < min)
+                min = value;
+        }
+    }
+
     @Override
     public void merge(Statistics stats) throws TimeseriesException {
         if (stats == null || stats.count == 0)
@@ -2,6 +2,7 @@ package nju.hjh.arcadedb.timeseries.types;
 
 import com.arcadedb.database.Binary;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPointSet;
 import nju.hjh.arcadedb.timeseries.exception.MessageParsingException;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 import nju.hjh.arcadedb.timeseries.statistics.Statistics;
@@ -78,4 +79,6 @@ public abstract class DataType {
     public abstract int maxDataPointBytes();
 
     public abstract DataPoint newEmptyDataPoint();
+
+    public abstract DataPointSet newEmptyDataPointSet();
 }
@@ -2,7 +2,9 @@ package nju.hjh.arcadedb.timeseries.types;
 
 import lombok.Getter;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPointSet;
 import nju.hjh.arcadedb.timeseries.datapoint.DoubleDataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.DoubleDataPointSet;
 import nju.hjh.arcadedb.timeseries.exception.DataTypeMismatchException;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 import nju.hjh.arcadedb.timeseries.statistics.DoubleStatistics;
@@ -68,4 +70,9 @@ public class DoubleDataType extends DataType{
     public DataPoint newEmptyDataPoint() {
         return new DoubleDataPoint();
     }
+
+    @Override
+    public DataPointSet newEmptyDataPointSet() {
+        return new DoubleDataPointSet();
+    }
 }
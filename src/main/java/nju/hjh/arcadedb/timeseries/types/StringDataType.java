@@ -2,6 +2,8 @@ package nju.hjh.arcadedb.timeseries.types;
 
 import com.arcadedb.database.Binary;
 import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPointSet;
+import nju.hjh.arcadedb.timeseries.datapoint.MapDataPointSet;
 import nju.hjh.arcadedb.timeseries.datapoint.StringDataPoint;
 import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
 import nju.hjh.arcadedb.timeseries.statistics.FixedStatistics;
@@ -98,4 +100,9 @@ public class StringDataType extends DataType{
     public DataPoint newEmptyDataPoint() {
         return new StringDataPoint();
     }
+
+    @Override
+    public DataPointSet newEmptyDataPointSet() {
+        return new MapDataPointSet(this);
+    }
 }
@@ -0,0 +1,91 @@
+import com.arcadedb.database.Database;
+import com.arcadedb.database.DatabaseFactory;
+import com.arcadedb.graph.Vertex;
+import nju.hjh.utils.exception.ExceptionSerializer;
+import nju.hjh.utils.log.Logger;
+import nju.hjh.arcadedb.timeseries.*;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.LongStatistics;
+
+import java.util.Random;
+
+public class TimeseriesBatchInsertTest {
+    public static void main(String[] args) {
+        Logger logger = Logger.getPureLogger("TSBatchInsert");
+        DatabaseFactory dbf = new DatabaseFactory("./databases/tsTest");
+
+        Database database;
+        if (dbf.exists()){
+            database = dbf.open();
+        }else{
+            database = dbf.create();
+        }
+
+        database.begin();
+        if (!database.getSchema().existsType("test")){
+            database.getSchema().createVertexType("test");
+        }
+        Vertex testVertex = database.newVertex("test").save();
+        database.commit();
+
+        logger.logOnStdout("created vertex rid is "+testVertex.getIdentity());
+        NestEngine tsEngine = new NestEngine(database);
+
+        tsEngine.begin();
+        try {
+            long startTime = System.currentTimeMillis();
+
+            final int testSize = 123456789;
+            final int batchSize = 1000000;
+
+            Random ran = new Random();
+
+            long[] timestamps = new long[batchSize];
+            Object[] values = new Object[batchSize];
+            for (int i=0; i<testSize; i+=batchSize){
+                long periodStartTime = System.currentTimeMillis();
+                int size = Math.min(batchSize, testSize-i);
+                if (size < batchSize){
+                    timestamps = new long[size];
+                    values = new Object[size];
+                }
+                for (int j=0; j<size; j++){
+                    timestamps[j] = i+j;
+                    values[j] = (long) (i+j);
+                }
+                tsEngine.insertBatch(testVertex.modify(), "status", timestamps, values, UpdateStrategy.ERROR);
+                tsEngine.commit();
+
+                long periodElapsed = System.currentTimeMillis() - periodStartTime;
+                logger.logOnStdout("inserted datapoints range=[%d, %d) using %d ms", i, i+size, periodElapsed);
+
+                tsEngine.begin();
+            }
+
+            long elapsed = System.currentTimeMillis() - startTime;
+            logger.logOnStdout("batch insert "+testSize+" datapoints into status of testVertex using "+elapsed+" ms");
+
+            for (int i=0; i<20; i++){
+                int queryStart = ran.nextInt(testSize);
+                int queryEnd = ran.nextInt(queryStart, testSize);
+                long ans = (long) (queryEnd + queryStart) * (queryEnd - queryStart + 1) / 2;
+
+                startTime = System.currentTimeMillis();
+
+                LongStatistics statistics = (LongStatistics) tsEngine.aggregativeQuery(testVertex, "status", queryStart, queryEnd);
+                long sum = statistics.sum;
+                elapsed = System.currentTimeMillis() - startTime;
+                logger.logOnStdout("query [%d, %d] get %s in %d ms with correctSum=%d, correct=%s", queryStart, queryEnd, statistics.toPrettyPrintString(), elapsed, ans, sum == ans);
+            }
+
+            tsEngine.commit();
+        } catch (TimeseriesException e) {
+            logger.logOnStderr(ExceptionSerializer.serializeAll(e));
+            tsEngine.rollback();
+            database.close();
+            return;
+        }
+
+        database.close();
+    }
+}
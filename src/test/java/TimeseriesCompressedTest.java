@@ -0,0 +1,119 @@
+import com.arcadedb.database.Database;
+import com.arcadedb.database.DatabaseFactory;
+import com.arcadedb.graph.Vertex;
+import nju.hjh.utils.exception.ExceptionSerializer;
+import nju.hjh.utils.log.Logger;
+import nju.hjh.arcadedb.timeseries.*;
+import nju.hjh.arcadedb.timeseries.datapoint.DataPoint;
+import nju.hjh.arcadedb.timeseries.datapoint.DoubleDataPoint;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.DoubleStatistics;
+import nju.hjh.arcadedb.timeseries.statistics.LongStatistics;
+
+import java.util.Random;
+
+public class TimeseriesCompressedTest {
+    public static void main(String[] args) {
+        Logger logger = Logger.getPureLogger("TSCompressed");
+        DatabaseFactory dbf = new DatabaseFactory("./databases/tsTest");
+
+        Database database;
+        if (dbf.exists()){
+            database = dbf.open();
+        }else{
+            database = dbf.create();
+        }
+
+        database.begin();
+        if (!database.getSchema().existsType("test")){
+            database.getSchema().createVertexType("test");
+        }
+        Vertex testVertex = database.newVertex("test").save();
+        database.commit();
+
+        logger.logOnStdout("created vertex rid is "+testVertex.getIdentity());
+        NestEngine tsEngine = new NestEngine(database);
+        tsEngine.setLeafCompression(true);
+
+        tsEngine.begin();
+        try {
+            long startTime = System.currentTimeMillis();
+
+            final int testSize = 10000000;
+            final int commitSize = 1000000;
+            final long baseTime = 1700000000000L;
+            final long interval = 1000;
+
+            Random ran = new Random();
+
+            long periodStartTime = System.currentTimeMillis();
+
+            // regular-interval data, even points first then odd points out of order
+            for (int i=0; i<testSize; i++){
+                if (i > 0 && i % commitSize == 0) {
+                    tsEngine.commit();
+
+                    long periodElapsed = System.currentTimeMillis() - periodStartTime;
+                    periodStartTime = System.currentTimeMillis();
+                    logger.logOnStdout("inserted datapoints range=[%d, %d) using %d ms", i-commitSize , i, periodElapsed);
+
+                    tsEngine.begin();
+                }
+                int index = i < testSize/2 ? i*2 : (i-testSize/2)*2+1;
+                tsEngine.insertDataPoint(testVertex.modify(), "count", baseTime + index*interval, index, UpdateStrategy.ERROR);
+                tsEngine.insertDataPoint(testVertex.modify(), "temperature", baseTime + index*interval, index/16.0, UpdateStrategy.ERROR);
+            }
+
+            tsEngine.commit();
+
+            long elapsed = System.currentTimeMillis() - startTime;
+            logger.logOnStdout("insert "+testSize+" datapoints into count and temperature of testVertex using "+elapsed+" ms");
+
+            tsEngine.begin();
+
+            for (int i=0; i<20; i++){
+                int queryStart = ran.nextInt(testSize);
+                int queryEnd = ran.nextInt(queryStart, testSize);
+                long ans = (long) (queryEnd + queryStart) * (queryEnd - queryStart + 1) / 2;
+
+                startTime = System.currentTimeMillis();
+
+                LongStatistics longStatistics = (LongStatistics) tsEngine.aggregativeQuery(testVertex, "count", baseTime + queryStart*interval, baseTime + queryEnd*interval);
+                DoubleStatistics doubleStatistics = (DoubleStatistics) tsEngine.aggregativeQuery(testVertex, "temperature", baseTime + queryStart*interval, baseTime + queryEnd*interval);
+                elapsed = System.currentTimeMillis() - startTime;
+                logger.logOnStdout("query [%d, %d] in %d ms with correctSum=%d, correct=%s", queryStart, queryEnd, elapsed, ans, longStatistics.sum == ans && doubleStatistics.sum == ans/16.0);
+            }
+
+            for (int i=0; i<20; i++){
+                int queryStart = ran.nextInt(testSize);
+                int queryEnd = ran.nextInt(queryStart, testSize);
+                startTime = System.currentTimeMillis();
+
+                DataPointList rs = tsEngine.periodQuery(testVertex, "temperature", baseTime + queryStart*interval, baseTime + queryEnd*interval);
+                DataPoint dp;
+                int cur = queryStart;
+                while ((dp = rs.next()) != null){
+                    if (dp.timestamp != baseTime + cur*interval || ((DoubleDataPoint) dp).value != cur/16.0)
+                        logger.logOnStderr("result not match at %d", cur);
+                    cur++;
+                }
+
+                cur--;
+                if (cur != queryEnd)
+                    logger.logOnStderr("result should end at %d but end at %d", queryEnd, cur);
+
+                elapsed = System.currentTimeMillis() - startTime;
+                logger.logOnStdout("period query [%d, %d] finished in %d ms", queryStart, queryEnd, elapsed);
+            }
+
+            tsEngine.commit();
+        } catch (TimeseriesException e) {
+            logger.logOnStderr(ExceptionSerializer.serializeAll(e));
+            tsEngine.rollback();
+            database.close();
+            return;
+        }
+
+        database.close();
+    }
+}
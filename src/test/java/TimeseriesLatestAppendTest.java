@@ -0,0 +1,78 @@
+import com.arcadedb.database.Database;
+import com.arcadedb.database.DatabaseFactory;
+import com.arcadedb.graph.Vertex;
+import nju.hjh.utils.exception.ExceptionSerializer;
+import nju.hjh.utils.log.Logger;
+import nju.hjh.arcadedb.timeseries.*;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.LongStatistics;
+
+import java.util.Random;
+
+public class TimeseriesLatestAppendTest {
+    public static void main(String[] args) {
+        Logger logger = Logger.getPureLogger("TSLatestAppend");
+        DatabaseFactory dbf = new DatabaseFactory("./databases/tsTest");
+
+        Database database;
+        if (dbf.exists()){
+            database = dbf.open();
+        }else{
+            database = dbf.create();
+        }
+
+        database.begin();
+        if (!database.getSchema().existsType("test")){
+            database.getSchema().createVertexType("test");
+        }
+        Vertex testVertex = database.newVertex("test").save();
+        database.commit();
+
+        logger.logOnStdout("created vertex rid is "+testVertex.getIdentity());
+        NestEngine tsEngine = new NestEngine(database);
+
+        tsEngine.begin();
+        try {
+            long startTime = System.currentTimeMillis();
+
+            final int testSize = 5000000;
+            final int commitSize = 100000;
+
+            Random ran = new Random();
+            long correctSum = 0;
+            int lateCount = 0;
+
+            for (int i=0; i<testSize; i++){
+                // mostly in order, some data points arrive late into odd timestamps left before
+                if (i % 100 == 99 && ran.nextBoolean()){
+                    int late = i - ran.nextInt(1, 100);
+                    tsEngine.appendDataPoint(testVertex.modify(), "status", late * 2L + 1, (long) late, UpdateStrategy.ERROR);
+                    correctSum += late;
+                    lateCount++;
+                }
+                tsEngine.appendDataPoint(testVertex.modify(), "status", i * 2L, (long) i, UpdateStrategy.ERROR);
+                correctSum += i;
+                if (i % commitSize == commitSize - 1){
+                    tsEngine.commit();
+                    tsEngine.begin();
+                }
+            }
+            tsEngine.commit();
+
+            long elapsed = System.currentTimeMillis() - startTime;
+            logger.logOnStdout("append "+testSize+" datapoints with "+lateCount+" late ones into status of testVertex using "+elapsed+" ms");
+
+            tsEngine.begin();
+            LongStatistics statistics = (LongStatistics) tsEngine.aggregativeQuery(testVertex, "status", 0, Long.MAX_VALUE);
+            logger.logOnStdout("count=%d(correct=%d) sum=%d(correct=%d)", statistics.count, testSize + lateCount, statistics.sum, correctSum);
+            tsEngine.commit();
+        } catch (TimeseriesException e) {
+            logger.logOnStderr(ExceptionSerializer.serializeAll(e));
+            tsEngine.rollback();
+            database.close();
+            return;
+        }
+
+        database.close();
+    }
+}
@@ -0,0 +1,110 @@
+import com.arcadedb.database.Database;
+import com.arcadedb.database.DatabaseFactory;
+import com.arcadedb.graph.Vertex;
+import nju.hjh.utils.exception.ExceptionSerializer;
+import nju.hjh.utils.log.Logger;
+import nju.hjh.arcadedb.timeseries.*;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.LongStatistics;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+
+import java.util.BitSet;
+import java.util.Random;
+
+public class TimeseriesOutOfOrderBufferTest {
+    public static void main(String[] args) {
+        Logger logger = Logger.getPureLogger("TSOutOfOrderBuffer");
+        DatabaseFactory dbf = new DatabaseFactory("./databases/tsTest");
+
+        Database database;
+        if (dbf.exists()){
+            database = dbf.open();
+        }else{
+            database = dbf.create();
+        }
+
+        database.begin();
+        if (!database.getSchema().existsType("test")){
+            database.getSchema().createVertexType("test");
+        }
+        Vertex testVertex = database.newVertex("test").save();
+        database.commit();
+
+        logger.logOnStdout("created vertex rid is "+testVertex.getIdentity());
+        NestEngine tsEngine = new NestEngine(database);
+        tsEngine.setBufferOutOfOrder(true);
+
+        tsEngine.begin();
+        try {
+            long startTime = System.currentTimeMillis();
+
+            final int testSize = 1000000;
+            final int commitSize = 100;
+
+            Random ran = new Random();
+            long correctSum = 0;
+            BitSet updated = new BitSet(testSize);
+
+            for (int i=0; i<testSize; i++){
+                tsEngine.insertDataPoint(testVertex.modify(), "status", i * 2L, (long) i, UpdateStrategy.IGNORE);
+                correctSum += i;
+                // late data points update existing ones, followed by ignored ones at the same timestamp
+                if (i > 10000 && i % 10 == 0){
+                    int late = ran.nextInt(i - 10000);
+                    tsEngine.insertDataPoint(testVertex.modify(), "status", late * 2L, late + 1L, UpdateStrategy.UPDATE);
+                    tsEngine.insertDataPoint(testVertex.modify(), "status", late * 2L, late + 2L, UpdateStrategy.IGNORE);
+                    if (!updated.get(late)) correctSum++;
+                    updated.set(late);
+                }
+                if (i % commitSize == commitSize - 1){
+                    tsEngine.commit();
+                    tsEngine.begin();
+                }
+            }
+            tsEngine.commit();
+
+            long elapsed = System.currentTimeMillis() - startTime;
+            logger.logOnStdout("insert "+testSize+" datapoints with late ones into status of testVertex using "+elapsed+" ms");
+
+            // several late data points in the first window: its min replaced by a larger value, and new ones at odd timestamps after it
+            final long windowSize = 20000;
+            tsEngine.begin();
+            tsEngine.insertDataPoint(testVertex.modify(), "status", 0L, 5L, UpdateStrategy.UPDATE);
+            correctSum += 5 - (updated.get(0) ? 1 : 0);
+            for (int k=0; k<3; k++){
+                tsEngine.insertDataPoint(testVertex.modify(), "status", k * 2L + 1, 1L, UpdateStrategy.UPDATE);
+                correctSum++;
+            }
+            tsEngine.commit();
+
+            // buffered data points are merged on read, before and after flushed into leaves
+            Statistics[][] windows = new Statistics[2][];
+            for (int round=0; round<2; round++){
+                tsEngine.begin();
+                if (round == 1) logger.logOnStdout("flushed buffers of %d trees", tsEngine.flushBuffers());
+                LongStatistics statistics = (LongStatistics) tsEngine.aggregativeQuery(testVertex, "status", 0, Long.MAX_VALUE);
+                int periodCount = tsEngine.periodQuery(testVertex, "status", 0, Long.MAX_VALUE).getList().size();
+                logger.logOnStdout("count=%d(correct=%d) periodCount=%d sum=%d(correct=%d)", statistics.count, testSize + 3, periodCount, statistics.sum, correctSum);
+                windows[round] = tsEngine.aggregateByWindow(testVertex, "status", 0, testSize * 2L - 1, windowSize);
+                tsEngine.commit();
+            }
+
+            int mismatchedWindows = 0;
+            for (int i=0; i<windows[0].length; i++){
+                LongStatistics buffered = (LongStatistics) windows[0][i], flushed = (LongStatistics) windows[1][i];
+                if (buffered.count != flushed.count || buffered.sum != flushed.sum || buffered.min != flushed.min || buffered.max != flushed.max)
+                    mismatchedWindows++;
+            }
+            LongStatistics firstWindow = (LongStatistics) windows[0][0];
+            logger.logOnStdout("window aggregates before flush mismatched in %d of %d windows(correct=0), first window count=%d(correct=%d)",
+                    mismatchedWindows, windows[0].length, firstWindow.count, windowSize / 2 + 3);
+        } catch (TimeseriesException e) {
+            logger.logOnStderr(ExceptionSerializer.serializeAll(e));
+            tsEngine.rollback();
+            database.close();
+            return;
+        }
+
+        database.close();
+    }
+}
@@ -0,0 +1,87 @@
+import com.arcadedb.database.Database;
+import com.arcadedb.database.DatabaseFactory;
+import com.arcadedb.graph.Vertex;
+import nju.hjh.arcadedb.timeseries.NestEngine;
+import nju.hjh.arcadedb.timeseries.UpdateStrategy;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.LongStatistics;
+import nju.hjh.utils.exception.ExceptionSerializer;
+import nju.hjh.utils.log.Logger;
+
+public class TimeseriesRootCacheTest {
+    public static void main(String[] args) {
+        Logger logger = Logger.getPureLogger("TSRootCache");
+        DatabaseFactory dbf = new DatabaseFactory("./databases/tsTest");
+
+        Database database;
+        if (dbf.exists()){
+            database = dbf.open();
+        }else{
+            database = dbf.create();
+        }
+
+        database.begin();
+        if (!database.getSchema().existsType("test")){
+            database.getSchema().createVertexType("test");
+        }
+        Vertex testVertex = database.newVertex("test").save();
+        database.commit();
+
+        logger.logOnStdout("created vertex rid is "+testVertex.getIdentity());
+        NestEngine tsEngine = new NestEngine(database);
+
+        try {
+            final int testSize = 10000;
+
+            // modified tree is kept in cache after commit
+            tsEngine.begin();
+            for (int i=0; i<testSize; i++)
+                tsEngine.insertDataPoint(testVertex.modify(), "status", i, (long) i, UpdateStrategy.IGNORE);
+            tsEngine.commit();
+            logger.logOnStdout("after commit: cachedTrees=%d(correct=1)", tsEngine.getCachedTreeCount());
+
+            tsEngine.begin();
+            LongStatistics statistics = (LongStatistics) tsEngine.aggregativeQuery(testVertex, "status", 0, Long.MAX_VALUE);
+            tsEngine.commit();
+            logger.logOnStdout("read cached tree: count=%d(correct=%d) cachedTrees=%d(correct=1)", statistics.count, testSize, tsEngine.getCachedTreeCount());
+
+            // tree modified by rolled back transaction is dropped, next read loads persisted state
+            tsEngine.begin();
+            for (int i=testSize; i<testSize*2; i++)
+                tsEngine.insertDataPoint(testVertex.modify(), "status", i, (long) i, UpdateStrategy.IGNORE);
+            tsEngine.rollback();
+            logger.logOnStdout("after rollback: cachedTrees=%d(correct=0)", tsEngine.getCachedTreeCount());
+
+            tsEngine.begin();
+            statistics = (LongStatistics) tsEngine.aggregativeQuery(testVertex, "status", 0, Long.MAX_VALUE);
+            tsEngine.commit();
+            logger.logOnStdout("read after rollback: count=%d(correct=%d) lastTime=%d(correct=%d)", statistics.count, testSize, statistics.lastTime, testSize - 1);
+
+            // least recently used tree is evicted once cache exceeds max bytes
+            tsEngine.begin();
+            tsEngine.insertDataPoint(testVertex.modify(), "status", testSize, (long) testSize, UpdateStrategy.IGNORE);
+            for (int i=0; i<testSize; i++)
+                tsEngine.insertDataPoint(testVertex.modify(), "status2", i, (long) i, UpdateStrategy.IGNORE);
+            tsEngine.commit();
+            logger.logOnStdout("after second tree: cachedTrees=%d(correct=2) cachedBytes=%d", tsEngine.getCachedTreeCount(), tsEngine.getCachedBytes());
+
+            tsEngine.setMaxCacheBytes(tsEngine.getCachedBytes() - 1);
+            tsEngine.begin();
+            tsEngine.insertDataPoint(testVertex.modify(), "status2", testSize, (long) testSize, UpdateStrategy.IGNORE);
+            tsEngine.commit();
+            logger.logOnStdout("after exceeding max bytes %d: cachedTrees=%d(correct=1) cachedBytes=%d", tsEngine.getMaxCacheBytes(), tsEngine.getCachedTreeCount(), tsEngine.getCachedBytes());
+
+            tsEngine.begin();
+            statistics = (LongStatistics) tsEngine.aggregativeQuery(testVertex, "status", 0, Long.MAX_VALUE);
+            tsEngine.commit();
+            logger.logOnStdout("read evicted tree: count=%d(correct=%d)", statistics.count, testSize + 1);
+        } catch (TimeseriesException e) {
+            logger.logOnStderr(ExceptionSerializer.serializeAll(e));
+            tsEngine.rollback();
+            database.close();
+            return;
+        }
+
+        database.close();
+    }
+}
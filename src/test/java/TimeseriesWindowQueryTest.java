@@ -0,0 +1,94 @@
+import com.arcadedb.database.Database;
+import com.arcadedb.database.DatabaseFactory;
+import com.arcadedb.graph.Vertex;
+import nju.hjh.utils.exception.ExceptionSerializer;
+import nju.hjh.utils.log.Logger;
+import nju.hjh.arcadedb.timeseries.*;
+import nju.hjh.arcadedb.timeseries.exception.TimeseriesException;
+import nju.hjh.arcadedb.timeseries.statistics.LongStatistics;
+import nju.hjh.arcadedb.timeseries.statistics.Statistics;
+
+import java.util.Random;
+
+public class TimeseriesWindowQueryTest {
+    public static void main(String[] args) {
+        Logger logger = Logger.getPureLogger("TSWindow");
+        DatabaseFactory dbf = new DatabaseFactory("./databases/tsTest");
+
+        Database database;
+        if (dbf.exists()){
+            database = dbf.open();
+        }else{
+            database = dbf.create();
+        }
+
+        database.begin();
+        if (!database.getSchema().existsType("test")){
+            database.getSchema().createVertexType("test");
+        }
+        Vertex testVertex = database.newVertex("test").save();
+        database.commit();
+
+        logger.logOnStdout("created vertex rid is "+testVertex.getIdentity());
+        NestEngine tsEngine = new NestEngine(database);
+
+        tsEngine.begin();
+        try {
+            long startTime = System.currentTimeMillis();
+
+            final int testSize = 12345678;
+            final int batchSize = 1000000;
+
+            Random ran = new Random();
+
+            for (int i=0; i<testSize; i+=batchSize){
+                int size = Math.min(batchSize, testSize-i);
+                long[] timestamps = new long[size];
+                Object[] values = new Object[size];
+                for (int j=0; j<size; j++){
+                    timestamps[j] = i+j;
+                    values[j] = (long) (i+j);
+                }
+                tsEngine.insertBatch(testVertex.modify(), "status", timestamps, values, UpdateStrategy.ERROR);
+                tsEngine.commit();
+                tsEngine.begin();
+            }
+
+            long elapsed = System.currentTimeMillis() - startTime;
+            logger.logOnStdout("batch insert "+testSize+" datapoints into status of testVertex using "+elapsed+" ms");
+
+            for (int i=0; i<20; i++){
+                int queryStart = ran.nextInt(testSize);
+                int queryEnd = ran.nextInt(queryStart, testSize);
+                int windowSize = ran.nextInt(1, 100000);
+                if ((queryEnd - queryStart) / windowSize + 1 > NestEngine.MAX_AGGREGATE_WINDOWS) continue;
+
+                startTime = System.currentTimeMillis();
+                Statistics[] windows = tsEngine.aggregateByWindow(testVertex, "status", queryStart, queryEnd, windowSize);
+                elapsed = System.currentTimeMillis() - startTime;
+
+                boolean correct = true;
+                for (int w=0; w<windows.length; w++){
+                    long windowStart = queryStart + (long) w * windowSize;
+                    long windowEnd = Math.min(windowStart + windowSize - 1, queryEnd);
+                    long ans = (windowStart + windowEnd) * (windowEnd - windowStart + 1) / 2;
+                    LongStatistics statistics = (LongStatistics) windows[w];
+                    if (statistics.sum != ans || statistics.count != windowEnd - windowStart + 1){
+                        logger.logOnStderr("window [%d, %d] get sum=%d count=%d, but correctSum=%d", windowStart, windowEnd, statistics.sum, statistics.count, ans);
+                        correct = false;
+                    }
+                }
+                logger.logOnStdout("query [%d, %d] by window %d get %d windows in %d ms, correct=%s", queryStart, queryEnd, windowSize, windows.length, elapsed, correct);
+            }
+
+            tsEngine.commit();
+        } catch (TimeseriesException e) {
+            logger.logOnStderr(ExceptionSerializer.serializeAll(e));
+            tsEngine.rollback();
+            database.close();
+            return;
+        }
+
+        database.close();
+    }
+}